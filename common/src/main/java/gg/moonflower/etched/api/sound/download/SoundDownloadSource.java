@@ -3,6 +3,7 @@ package gg.moonflower.etched.api.sound.download;
 import com.google.gson.JsonParseException;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.UrlNormalizer;
 import gg.moonflower.etched.core.Etched;
 import net.minecraft.SharedConstants;
 import net.minecraft.network.chat.Component;
@@ -13,10 +14,15 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * A source for audio to download from besides a direct URL.
@@ -39,6 +45,23 @@ public interface SoundDownloadSource {
         return map;
     }
 
+    /**
+     * Runs a blocking request as a task on the specified executor. This is how the blocking methods of a source are adapted to the asynchronous ones.
+     *
+     * @param request  The request to run
+     * @param executor The executor to run the request on
+     * @return A future for the result of the request
+     */
+    static <T> CompletableFuture<T> supplyAsync(Request<T> request, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return request.get();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
     /**
      * Resolves the streaming URL for the specified track.
      *
@@ -74,6 +97,54 @@ public interface SoundDownloadSource {
      */
     Optional<String> resolveAlbumCover(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager) throws IOException;
 
+    /**
+     * Resolves the streaming URLs for the specified track without blocking. Sources that need several requests to resolve a track should run each request as its own task, so a thread is not held for the whole resolution.
+     *
+     * @param url              The URL to the track or album
+     * @param progressListener The listener for net status
+     * @param proxy            The internet proxy
+     * @param executor         The executor to run requests on
+     * @return A future for the URLs to the audio files
+     */
+    default CompletableFuture<List<URL>> resolveUrlAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        return SoundDownloadSource.supplyAsync(() -> this.resolveUrl(url, progressListener, proxy), executor);
+    }
+
+    /**
+     * Resolves the artist and title for the specified track without blocking.
+     *
+     * @param url              The URL to the track or album
+     * @param progressListener The listener for net status
+     * @param proxy            The internet proxy
+     * @param executor         The executor to run requests on
+     * @return A future for the tracks
+     * @see #resolveTracks(String, DownloadProgressListener, Proxy)
+     */
+    default CompletableFuture<TrackData[]> resolveTracksAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        return SoundDownloadSource.supplyAsync(() -> this.resolveTracks(url, progressListener, proxy), executor);
+    }
+
+    /**
+     * Resolves the cover for the specified album without blocking.
+     *
+     * @param url              The URL to the album
+     * @param progressListener The listener for net status
+     * @param proxy            The internet proxy
+     * @param executor         The executor to run requests on
+     * @return A future for the cover URL or <code>{@link Optional#empty()}</code> if there is no cover
+     */
+    default CompletableFuture<Optional<String>> resolveAlbumCoverAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager, Executor executor) {
+        return SoundDownloadSource.supplyAsync(() -> this.resolveAlbumCover(url, progressListener, proxy, resourceManager), executor);
+    }
+
+    /**
+     * Forgets anything this source has cached for the specified URL, so the next request resolves it again. Called when URLs resolved earlier have stopped working.
+     *
+     * @param url The URL to forget
+     */
+    default void invalidate(String url) {
+    }
+
     /**
      * Checks to see if the specified URL is for this source.
      *
@@ -82,6 +153,25 @@ public interface SoundDownloadSource {
      */
     boolean isValidUrl(String url);
 
+    /**
+     * Retrieves the hosts this source handles. Subdomains of each host are matched as well. URLs matched by host are still checked with {@link #isValidUrl(String)}.
+     *
+     * @return The hosts of this source or an empty collection to check every URL with {@link #isValidUrl(String)}
+     */
+    default Collection<String> getHosts() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Converts a URL for this source into the single form used to identify it in caches. Links to the same track that differ in sharing parameters or host aliases should all produce the same URL.
+     *
+     * @param url The URL to convert
+     * @return The canonical form of the URL
+     */
+    default String canonicalize(String url) {
+        return UrlNormalizer.normalize(url);
+    }
+
     /**
      * Checks to see if the specified URL should be stored in the temporary cache.
      *
@@ -104,4 +194,15 @@ public interface SoundDownloadSource {
     default Optional<Component> getBrandText(String url) {
         return Optional.empty();
     }
+
+    /**
+     * A blocking request made by a source.
+     *
+     * @param <T> The type of result
+     */
+    @FunctionalInterface
+    interface Request<T> {
+
+        T get() throws Exception;
+    }
 }
@@ -1,18 +1,24 @@
 package gg.moonflower.etched.api.sound.download;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.mojang.blaze3d.platform.NativeImage;
 import gg.moonflower.etched.api.record.AlbumCover;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.sound.source.AudioSource;
 import gg.moonflower.etched.api.sound.source.RawAudioSource;
 import gg.moonflower.etched.api.sound.source.StreamingAudioSource;
+import gg.moonflower.etched.api.util.DownloadGroup;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.DownloadScheduler;
+import gg.moonflower.etched.api.util.UrlNormalizer;
 import gg.moonflower.etched.client.render.item.AlbumTextureCache;
+import gg.moonflower.etched.client.sound.SoundCache;
+import gg.moonflower.etched.client.sound.SoundMetadataCache;
 import gg.moonflower.pollen.pinwheel.api.client.FileCache;
 import net.minecraft.Util;
 import net.minecraft.network.chat.Component;
 import net.minecraft.server.packs.resources.ResourceManager;
-import net.minecraft.util.HttpUtil;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -22,14 +28,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.Set;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Manages all sources of sound obtained through sources besides direct downloads.
@@ -41,7 +50,10 @@ public final class SoundSourceManager {
 
     private static final Set<SoundDownloadSource> SOURCES = new HashSet<>();
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final FileCache ALBUM_COVER_CACHE = new AlbumTextureCache(HttpUtil.DOWNLOAD_EXECUTOR, 1, TimeUnit.DAYS);
+    private static final Cache<String, Optional<SoundDownloadSource>> ROUTES = CacheBuilder.newBuilder().maximumSize(256).build();
+    private static volatile Map<String, List<SoundDownloadSource>> hostSources = Collections.emptyMap();
+    private static volatile List<SoundDownloadSource> unroutedSources = Collections.emptyList();
+    private static final FileCache ALBUM_COVER_CACHE = new AlbumTextureCache(DownloadScheduler.executor(DownloadScheduler.Priority.COVER), 1, TimeUnit.DAYS);
 
     private SoundSourceManager() {
     }
@@ -52,7 +64,82 @@ public final class SoundSourceManager {
      * @param source The source to add
      */
     public static synchronized void registerSource(SoundDownloadSource source) {
-        SOURCES.add(source);
+        if (!SOURCES.add(source))
+            return;
+
+        Map<String, List<SoundDownloadSource>> hosts = new HashMap<>();
+        hostSources.forEach((host, sources) -> hosts.put(host, new ArrayList<>(sources)));
+        List<SoundDownloadSource> unrouted = new ArrayList<>(unroutedSources);
+        if (source.getHosts().isEmpty()) {
+            unrouted.add(source);
+        } else {
+            for (String host : source.getHosts())
+                hosts.computeIfAbsent(host.toLowerCase(Locale.ROOT), key -> new ArrayList<>()).add(source);
+        }
+        hostSources = hosts;
+        unroutedSources = unrouted;
+        ROUTES.invalidateAll();
+    }
+
+    @Nullable
+    private static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host.toLowerCase(Locale.ROOT) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static Optional<SoundDownloadSource> findSource(String url) {
+        String host = getHost(url);
+        if (host != null) {
+            Map<String, List<SoundDownloadSource>> hosts = hostSources;
+            // Check the full host first, then each parent domain
+            for (String suffix = host; ; ) {
+                List<SoundDownloadSource> sources = hosts.get(suffix);
+                if (sources != null) {
+                    for (SoundDownloadSource source : sources)
+                        if (source.isValidUrl(url))
+                            return Optional.of(source);
+                }
+
+                int dot = suffix.indexOf('.');
+                if (dot == -1)
+                    break;
+                suffix = suffix.substring(dot + 1);
+            }
+        }
+
+        for (SoundDownloadSource source : unroutedSources)
+            if (source.isValidUrl(url))
+                return Optional.of(source);
+        return Optional.empty();
+    }
+
+    /**
+     * Retrieves the source that handles the specified URL. Results are remembered, so this is cheap enough to call every frame.
+     *
+     * @param url The URL to find the source for
+     * @return The source for that URL or nothing if it is a direct download
+     */
+    public static Optional<SoundDownloadSource> getSource(String url) {
+        Optional<SoundDownloadSource> source = ROUTES.getIfPresent(url);
+        if (source == null) {
+            source = findSource(url);
+            ROUTES.put(url, source);
+        }
+        return source;
+    }
+
+    /**
+     * Converts the specified URL into the single form used to identify it in caches. URLs for a source are converted by that source and all other URLs are normalized.
+     *
+     * @param url The URL to convert
+     * @return The canonical form of the URL
+     */
+    public static String canonicalize(String url) {
+        return getSource(url).map(source -> source.canonicalize(url)).orElseGet(() -> UrlNormalizer.normalize(url));
     }
 
     /**
@@ -65,25 +152,129 @@ public final class SoundSourceManager {
      * @throws MalformedURLException If any error occurs when resolving URLs
      */
     public static CompletableFuture<AudioSource> getAudioSource(String url, @Nullable DownloadProgressListener listener, Proxy proxy, AudioSource.AudioFileType type) throws MalformedURLException {
-        Optional<SoundDownloadSource> source = SOURCES.stream().filter(s -> s.isValidUrl(url)).findFirst();
+        return getAudioSource(url, listener, proxy, type, new DownloadGroup());
+    }
+
+    /**
+     * Retrieves an {@link AudioSource} from the specified URL.
+     *
+     * @param url      The URL to retrieve
+     * @param listener The listener for events
+     * @param proxy    The connection proxy
+     * @param group    The group to schedule all downloads for the source in
+     * @return A future for the source
+     * @throws MalformedURLException If any error occurs when resolving URLs
+     */
+    public static CompletableFuture<AudioSource> getAudioSource(String url, @Nullable DownloadProgressListener listener, Proxy proxy, AudioSource.AudioFileType type, DownloadGroup group) throws MalformedURLException {
+        Optional<SoundDownloadSource> source = getSource(url);
+        String canonicalUrl = canonicalize(url);
+        String hash = DigestUtils.sha1Hex(canonicalUrl);
 
-        return (source.isPresent() ? CompletableFuture.supplyAsync(() -> {
+        // Skip resolving the track through the source API when everything it resolved into last time is still cached
+        if (source.isPresent()) {
+            boolean temporary = source.get().isTemporary(url);
+            int files = SoundMetadataCache.getAudioFileCount(url);
             try {
-                return source.get().resolveUrl(url, listener, proxy).toArray(new URL[0]);
-            } catch (Exception e) {
-                throw new CompletionException("Failed to connect to " + source.get().getApiName() + " API", e);
+                if (files > 1 && isCached(hash, files, temporary))
+                    return CompletableFuture.completedFuture(new StreamingAudioSource(hash, files, temporary, type, group, createResolver(url, proxy, group, source.get(), canonicalUrl)));
+
+                Path location = files <= 1 && type.isFile() ? SoundCache.findFilePath(hash, temporary) : null;
+                String key = location != null ? location.getFileName().toString() : null;
+                if (location != null && SoundCache.isValid(location, key)) {
+                    if (SoundCache.isVerified(location))
+                        return CompletableFuture.completedFuture(new RawAudioSource(location));
+
+                    // Reading the file back to check it is too slow for the calling thread
+                    return CompletableFuture.supplyAsync(() -> SoundCache.verify(location, key), group.executor(DownloadScheduler.Priority.AUDIBLE)).thenCompose(intact -> {
+                        if (intact)
+                            return CompletableFuture.completedFuture(new RawAudioSource(location));
+                        try {
+                            return resolveAudioSource(url, listener, proxy, type, group, source, canonicalUrl, hash);
+                        } catch (MalformedURLException e) {
+                            throw new CompletionException(e);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to check cache for " + url, e);
+            }
+        }
+
+        return resolveAudioSource(url, listener, proxy, type, group, source, canonicalUrl, hash);
+    }
+
+    private static boolean isCached(String hash, int files, boolean temporary) {
+        for (int i = 0; i < files; i++) {
+            Path location = SoundCache.findFilePath(DigestUtils.sha1Hex(hash + i), temporary);
+            if (location == null || !SoundCache.isValid(location, location.getFileName().toString()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Audio URLs are often signed, so they are resolved again if they expire before or partway through playback.
+     */
+    private static Supplier<CompletableFuture<URL[]>> createResolver(String url, Proxy proxy, DownloadGroup group, SoundDownloadSource source, String canonicalUrl) {
+        return () -> {
+            // Neither the stored URLs nor the document the source may have cached can be trusted anymore
+            SoundMetadataCache.invalidate(url, SoundMetadataCache.Field.AUDIO_URLS);
+            source.invalidate(canonicalUrl);
+            return source.resolveUrlAsync(canonicalUrl, null, proxy, group.executor(DownloadScheduler.Priority.AUDIBLE)).thenApply(resolved -> {
+                URL[] urls = resolved.toArray(new URL[0]);
+                if (urls.length > 0)
+                    SoundMetadataCache.putAudioUrls(url, urls);
+                return urls;
+            });
+        };
+    }
+
+    private static CompletableFuture<AudioSource> resolveAudioSource(String url, @Nullable DownloadProgressListener listener, Proxy proxy, AudioSource.AudioFileType type, DownloadGroup group, Optional<SoundDownloadSource> source, String canonicalUrl, String hash) throws MalformedURLException {
+        // Audio URLs resolved in an earlier session can be used directly while they are still valid
+        URL[] knownUrls = source.isPresent() ? SoundMetadataCache.getAudioUrls(url) : null;
+        CompletableFuture<URL[]> urlsFuture;
+        if (knownUrls != null) {
+            urlsFuture = CompletableFuture.completedFuture(knownUrls);
+        } else if (source.isPresent()) {
+            if (group.isCancelled()) {
+                CompletableFuture<AudioSource> future = new CompletableFuture<>();
+                future.completeExceptionally(new CancellationException("Download was cancelled"));
+                return future;
             }
-        }, HttpUtil.DOWNLOAD_EXECUTOR) : CompletableFuture.completedFuture(new URL[]{new URL(url)})).thenApplyAsync(urls -> {
+
+            urlsFuture = source.get().resolveUrlAsync(canonicalUrl, listener, proxy, group.executor(DownloadScheduler.Priority.AUDIBLE)).handle((resolved, e) -> {
+                if (e != null)
+                    throw new CompletionException("Failed to connect to " + source.get().getApiName() + " API", e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+
+                URL[] urls = resolved.toArray(new URL[0]);
+                if (urls.length > 0)
+                    SoundMetadataCache.putAudioUrls(url, urls);
+                return urls;
+            });
+        } else {
+            urlsFuture = CompletableFuture.completedFuture(new URL[]{new URL(url)});
+        }
+
+        Supplier<CompletableFuture<URL[]>> resolver = source.map(s -> createResolver(url, proxy, group, s, canonicalUrl)).orElse(null);
+        return urlsFuture.thenApplyAsync(urls -> {
             try {
                 if (urls.length == 0)
                     throw new IOException("No audio data was found at the source!");
-                if (urls.length == 1)
-                    return new RawAudioSource(DigestUtils.sha1Hex(url), urls[0], listener, source.map(s -> s.isTemporary(url)).orElse(false), type);
-                return new StreamingAudioSource(DigestUtils.sha1Hex(url), urls, listener, source.map(s -> s.isTemporary(url)).orElse(false), type);
+                boolean temporary = source.map(s -> s.isTemporary(url)).orElse(false);
+                // Stored URLs may have been revoked early, so a single file is resolved again right away if it fails for any reason
+                AudioSource audioSource = urls.length == 1 ? new RawAudioSource(hash, urls[0], listener, temporary, type, group, knownUrls != null ? resolver : null) : new StreamingAudioSource(hash, urls, listener, temporary, type, group, resolver);
+                if (knownUrls != null) {
+                    // Segments are only resolved again when they expire, so any other failure resolves them next time
+                    audioSource.getDownloadFuture().whenComplete((__, e) -> {
+                        if (e != null && !SoundCache.isCancellation(e))
+                            SoundMetadataCache.invalidate(url, SoundMetadataCache.Field.AUDIO_URLS);
+                    });
+                }
+                return audioSource;
             } catch (Exception e) {
                 throw new CompletionException(e);
             }
-        }, HttpUtil.DOWNLOAD_EXECUTOR);
+        }, group.executor(DownloadScheduler.Priority.AUDIBLE));
     }
 
     /**
@@ -96,14 +287,8 @@ public final class SoundSourceManager {
      * @throws IOException If any error occurs when connecting to the sources
      */
     public static CompletableFuture<TrackData[]> resolveTracks(String url, @Nullable DownloadProgressListener listener, Proxy proxy) throws IOException {
-        SoundDownloadSource source = SOURCES.stream().filter(s -> s.isValidUrl(url)).findFirst().orElseThrow(() -> new IOException("Unknown source for: " + url));
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                return source.resolveTracks(url, listener, proxy);
-            } catch (Exception e) {
-                throw new CompletionException(e);
-            }
-        }, HttpUtil.DOWNLOAD_EXECUTOR);
+        SoundDownloadSource source = getSource(url).orElseThrow(() -> new IOException("Unknown source for: " + url));
+        return source.resolveTracksAsync(source.canonicalize(url), listener, proxy, DownloadScheduler.executor(DownloadScheduler.Priority.METADATA));
     }
 
     /**
@@ -115,14 +300,23 @@ public final class SoundSourceManager {
      * @return The album cover found or nothing
      */
     public static CompletableFuture<AlbumCover> resolveAlbumCover(String url, @Nullable DownloadProgressListener listener, Proxy proxy, ResourceManager resourceManager) {
-        return CompletableFuture.supplyAsync(() -> SOURCES.stream().filter(s -> s.isValidUrl(url)).findFirst().flatMap(source -> {
-            try {
-                return source.resolveAlbumCover(url, listener, proxy, resourceManager);
-            } catch (Exception e) {
-                LOGGER.error("Failed to connect to " + source.getApiName() + " API", e);
-                return Optional.empty();
-            }
-        }), HttpUtil.DOWNLOAD_EXECUTOR).thenCompose(coverUrl -> coverUrl.map(s -> ALBUM_COVER_CACHE.requestResource(s, false).thenApplyAsync(path -> {
+        Optional<SoundDownloadSource> source = getSource(url);
+        CompletableFuture<Optional<String>> coverFuture;
+        if (!source.isPresent()) {
+            coverFuture = CompletableFuture.completedFuture(Optional.empty());
+        } else if (SoundMetadataCache.hasAlbumCover(url)) {
+            coverFuture = CompletableFuture.completedFuture(Optional.ofNullable(SoundMetadataCache.getAlbumCover(url)));
+        } else {
+            coverFuture = source.get().resolveAlbumCoverAsync(source.get().canonicalize(url), listener, proxy, resourceManager, DownloadScheduler.executor(DownloadScheduler.Priority.COVER)).handle((cover, e) -> {
+                if (e != null) {
+                    LOGGER.error("Failed to connect to " + source.get().getApiName() + " API", e);
+                    return Optional.empty();
+                }
+                SoundMetadataCache.putAlbumCover(url, cover);
+                return cover;
+            });
+        }
+        return coverFuture.thenCompose(coverUrl -> coverUrl.map(s -> ALBUM_COVER_CACHE.requestResource(s, false).thenApplyAsync(path -> {
             try (InputStream is = Files.newInputStream(path)) {
                 return AlbumCover.of(NativeImage.read(is));
             } catch (Exception e) {
@@ -138,7 +332,7 @@ public final class SoundSourceManager {
      * @return The brand of that source or nothing
      */
     public static Optional<Component> getBrandText(String url) {
-        return SOURCES.stream().filter(source -> source.isValidUrl(url)).findFirst().flatMap(s -> s.getBrandText(url));
+        return getSource(url).flatMap(s -> s.getBrandText(url));
     }
 
     /**
@@ -148,6 +342,6 @@ public final class SoundSourceManager {
      * @return Whether that URL refers to an external source
      */
     public static boolean isValidUrl(String url) {
-        return SOURCES.stream().anyMatch(s -> s.isValidUrl(url));
+        return getSource(url).isPresent();
     }
 }
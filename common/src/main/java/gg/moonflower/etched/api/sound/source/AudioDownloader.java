@@ -0,0 +1,315 @@
+package gg.moonflower.etched.api.sound.source;
+
+import gg.moonflower.etched.api.util.*;
+import gg.moonflower.etched.client.sound.SoundCache;
+import gg.moonflower.pollen.api.util.AsyncInputStream;
+import net.minecraft.network.chat.TranslatableComponent;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Downloads audio files into the {@link SoundCache}.
+ *
+ * @author Ocelot
+ */
+final class AudioDownloader {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long MAX_FILE_SIZE = 104857600;
+    private static final int MAX_STALL_RETRIES = 2;
+
+    private AudioDownloader() {
+    }
+
+    static AsyncInputStream.InputStreamSupplier download(Path file, URL url, @Nullable DownloadProgressListener progressListener, AudioSource.AudioFileType type, @Nullable ProgressiveDownload progressive, @Nullable DownloadGroup group) {
+        String key = file.getFileName().toString();
+        // Files that were corrupted on disk are removed by the check and downloaded again
+        SoundCache.CacheEntry cached = type.isFile() && SoundCache.verify(file, key) ? SoundCache.getEntry(file, key) : null;
+
+        // Fresh files never need to touch the network
+        if (cached != null && !cached.isExpired())
+            return () -> Files.newInputStream(file);
+
+        // Play the stale file right away and bring it up to date for next time
+        if (cached != null && cached.isStale()) {
+            SoundCache.revalidate(key, () -> {
+                try {
+                    fetch(file, url, null, type, null, null, cached, 0);
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to revalidate " + url, e);
+                }
+            }, DownloadScheduler.executor(DownloadScheduler.Priority.METADATA));
+            return () -> Files.newInputStream(file);
+        }
+
+        return fetch(file, url, progressListener, type, progressive, group, cached, 0);
+    }
+
+    private static AsyncInputStream.InputStreamSupplier fetch(Path file, URL url, @Nullable DownloadProgressListener progressListener, AudioSource.AudioFileType type, @Nullable ProgressiveDownload progressive, @Nullable DownloadGroup group, @Nullable SoundCache.CacheEntry cached, int attempt) {
+        if (progressListener != null)
+            progressListener.progressStartRequest(new TranslatableComponent("resourcepack.requesting"));
+
+        DownloadScheduler.Priority taskPriority = DownloadScheduler.getCurrentPriority() != null ? DownloadScheduler.getCurrentPriority() : DownloadScheduler.Priority.METADATA;
+        Supplier<DownloadScheduler.Priority> priority = group != null ? () -> group.getPriority(taskPriority) : () -> taskPriority;
+
+        HttpTransfer transfer = null;
+        boolean stalled = false;
+        try {
+            String key = file.getFileName().toString();
+            SoundCache.PartialDownload partial = SoundCache.getPartialDownload(file, key);
+            HttpGet get = new HttpGet(url.toURI());
+            AudioSource.getDownloadHeaders().forEach(get::addHeader);
+            if (partial != null) {
+                get.addHeader("Range", "bytes=" + partial.getLength() + "-");
+                get.addHeader("If-Range", partial.getValidator());
+            } else if (cached != null && cached.isExpired()) {
+                CachePolicy cachedPolicy = cached.getPolicy();
+                if (cachedPolicy.getEtag() != null)
+                    get.addHeader("If-None-Match", cachedPolicy.getEtag());
+                if (cachedPolicy.getLastModified() != null)
+                    get.addHeader("If-Modified-Since", cachedPolicy.getLastModified());
+            }
+
+            transfer = new HttpTransfer(get, progressive);
+            if (group != null)
+                group.register(transfer);
+
+            try (CloseableHttpResponse response = EtchedHttpClient.execute(get, Proxy.NO_PROXY)) {
+                // Waiting for a pooled connection or for headers is covered by the client timeouts, so only the body is watched for stalls
+                TransferWatchdog.watch(transfer);
+                int statusCode = response.getStatusLine().getStatusCode();
+                CachePolicy policy = CachePolicy.fromResponse(response);
+
+                // The file has not changed, so only the expiration needs to be extended
+                if (statusCode == 304 && cached != null) {
+                    CachePolicy cachedPolicy = cached.getPolicy();
+                    if (response.getFirstHeader("Cache-Control") == null)
+                        policy = new CachePolicy(cachedPolicy.getMaxAge(), cachedPolicy.getStaleWhileRevalidate(), true, policy.getEtag(), policy.getLastModified());
+                    SoundCache.refreshCache(key, policy.withFallbackValidators(cachedPolicy.getEtag(), cachedPolicy.getLastModified()));
+                    return () -> Files.newInputStream(file);
+                }
+
+                // Error pages are not audio, so they must never be cached or played. A range the partial file cannot satisfy is handled below
+                if (statusCode >= 400 && !(partial != null && statusCode == 416))
+                    throw new RetryPolicy.StatusException(statusCode, response.getStatusLine().getReasonPhrase());
+
+                HttpEntity entity = response.getEntity();
+                InputStream inputStream = new BandwidthLimitedInputStream(entity.getContent(), priority, transfer.waitTime);
+                long contentLength = entity.getContentLength();
+
+                // The server only resumes when the stored validator still matches, otherwise the full body is sent
+                boolean resuming = false;
+                if (partial != null) {
+                    if (statusCode == 206 && isContentRangeFrom(response, partial.getLength())) {
+                        resuming = true;
+                        policy = policy.withFallbackValidators(partial.getEtag(), partial.getLastModified());
+                    } else if (statusCode == 206 || statusCode == 416) {
+                        SoundCache.discardPartialDownload(file, key);
+                        response.close();
+                        TransferWatchdog.unwatch(transfer);
+                        if (group != null)
+                            group.unregister(transfer);
+                        return fetch(file, url, progressListener, type, progressive, group, cached, attempt);
+                    } else {
+                        SoundCache.discardPartialDownload(file, key);
+                    }
+                }
+                long totalLength = resuming ? partial.getLength() + contentLength : contentLength;
+
+                if (contentLength <= 0 || !policy.isCacheable()) {
+                    if (!type.isStream())
+                        throw new IOException("The provided URL is a stream, but that is not supported");
+                    Files.deleteIfExists(file);
+                    return () -> new AsyncInputStream(() -> new BandwidthLimitedInputStream(EtchedHttpClient.openConnection(url).getInputStream(), priority), 8192, 4, DownloadScheduler.workers());
+                }
+
+                if (!type.isFile())
+                    throw new IOException("The provided URL is a file, but that is not supported");
+                if (SoundCache.isValid(file, key))
+                    return () -> Files.newInputStream(file);
+                if (totalLength > MAX_FILE_SIZE)
+                    throw new IOException("Filesize is bigger than maximum allowed (file is " + totalLength + ", limit is " + MAX_FILE_SIZE + ")");
+
+                if (!resuming && SegmentedDownloader.canSegment(response, totalLength)) {
+                    SegmentedDownloader downloader = new SegmentedDownloader(url, AudioSource.getDownloadHeaders(), Proxy.NO_PROXY, inputStream, totalLength, policy.getRangeValidator(), progressListener, DownloadScheduler.workers(), priority, transfer.waitTime);
+                    transfer.track(downloader::getDownloaded, totalLength, downloader::abort);
+                    // Segments arrive out of order, so there is no running checksum for them
+                    SoundCache.updateCache(file, key, policy, partialFile -> {
+                        downloader.download(partialFile, progressive);
+                        return null;
+                    }, false);
+                    checkAborted(transfer, group, file, key);
+                    if (progressive != null)
+                        progressive.complete();
+                    return () -> Files.newInputStream(file);
+                }
+
+                // Progress and the size limit are checked by the writer, so the response is not wrapped in another stream
+                AtomicLong written = new AtomicLong(resuming ? partial.getLength() : 0);
+                if (progressListener != null)
+                    progressListener.progressStartDownload(totalLength / 1024.0F / 1024.0F);
+                LongConsumer listener = length -> {
+                    written.set(length);
+                    if (progressListener != null)
+                        progressListener.progressStage((float) length / (float) totalLength);
+                };
+                transfer.track(written::get, totalLength);
+                if (progressive != null) {
+                    boolean append = resuming;
+                    try {
+                        SoundCache.updateCache(file, key, policy, partialFile -> progressive.write(inputStream, partialFile, append, MAX_FILE_SIZE, listener), true);
+                    } finally {
+                        IOUtils.closeQuietly(inputStream);
+                    }
+                    checkAborted(transfer, group, file, key);
+                    progressive.complete();
+                } else {
+                    SoundCache.updateCache(file, key, policy, inputStream, resuming, MAX_FILE_SIZE, listener);
+                }
+            }
+
+            checkAborted(transfer, group, file, key);
+        } catch (Throwable e) {
+            if (transfer != null && transfer.isStalled() && (group == null || !group.isCancelled()) && attempt < MAX_STALL_RETRIES) {
+                stalled = true;
+            } else {
+                // Report aborted transfers as cancelled so the sound does not show a download failure
+                if (group != null && group.isCancelled()) {
+                    CancellationException cancellation = new CancellationException("Download was cancelled");
+                    cancellation.initCause(e);
+                    e = cancellation;
+                }
+                if (progressive != null) {
+                    progressive.resume();
+                    progressive.fail(e);
+                }
+                throw new CompletionException(e);
+            }
+        } finally {
+            if (transfer != null) {
+                TransferWatchdog.unwatch(transfer);
+                if (group != null)
+                    group.unregister(transfer);
+            }
+        }
+
+        // Any partial data was kept, so the retry continues from where the stalled transfer stopped
+        if (stalled) {
+            LOGGER.warn("Retrying stalled download of " + url + " (attempt " + (attempt + 2) + "/" + (MAX_STALL_RETRIES + 1) + ")");
+            return fetch(file, url, progressListener, type, progressive, group, cached, attempt + 1);
+        }
+        return () -> Files.newInputStream(file);
+    }
+
+    /**
+     * The cache swallows write errors, so this checks whether the transfer was aborted before the file could be completed.
+     */
+    private static void checkAborted(HttpTransfer transfer, @Nullable DownloadGroup group, Path file, String key) throws IOException {
+        if (SoundCache.isValid(file, key))
+            return;
+        if (group != null && group.isCancelled())
+            throw new CancellationException("Download was cancelled");
+        if (transfer.isStalled())
+            throw new IOException("Transfer stalled");
+    }
+
+    private static boolean isContentRangeFrom(HttpResponse response, long start) {
+        Header contentRange = response.getFirstHeader("Content-Range");
+        return contentRange != null && contentRange.getValue().trim().startsWith("bytes " + start + "-");
+    }
+
+    private static class HttpTransfer implements DownloadGroup.Transfer, TransferWatchdog.Watched {
+
+        private final HttpGet request;
+        private final ProgressiveDownload progressive;
+        private final BandwidthLimiter.WaitTime waitTime;
+        private volatile LongSupplier read;
+        private volatile long length;
+        private volatile Runnable abort;
+        private volatile boolean stalled;
+
+        private HttpTransfer(HttpGet request, @Nullable ProgressiveDownload progressive) {
+            this.request = request;
+            this.progressive = progressive;
+            this.waitTime = new BandwidthLimiter.WaitTime();
+            this.read = () -> 0;
+            this.length = 0;
+            this.abort = () -> {
+            };
+        }
+
+        private void track(LongSupplier read, long length) {
+            this.track(read, length, () -> {
+            });
+        }
+
+        private void track(LongSupplier read, long length, Runnable abort) {
+            this.read = read;
+            this.length = length;
+            this.abort = abort;
+        }
+
+        @Override
+        public float getProgress() {
+            return this.length <= 0 ? 0 : (float) this.read.getAsLong() / (float) this.length;
+        }
+
+        @Override
+        public void abort() {
+            // Fail readers with the cancellation before the aborted connection fails them with an IO error
+            if (this.progressive != null)
+                this.progressive.fail(new CancellationException("Download was cancelled"));
+            this.request.abort();
+            this.abort.run();
+        }
+
+        @Override
+        public long getTransferred() {
+            return this.read.getAsLong();
+        }
+
+        @Override
+        public long getWaitTime() {
+            return this.waitTime.get();
+        }
+
+        @Override
+        public void stall() {
+            // Readers keep waiting so the retry can continue feeding them
+            this.stalled = true;
+            if (this.progressive != null)
+                this.progressive.suspend();
+            this.request.abort();
+            this.abort.run();
+        }
+
+        private boolean isStalled() {
+            return this.stalled;
+        }
+
+        @Override
+        public String toString() {
+            return this.request.getURI().toString();
+        }
+    }
+}
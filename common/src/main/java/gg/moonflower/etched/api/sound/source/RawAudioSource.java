@@ -1,37 +1,100 @@
 package gg.moonflower.etched.api.sound.source;
 
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.DownloadGroup;
+import gg.moonflower.etched.api.util.DownloadScheduler;
+import gg.moonflower.etched.api.util.ProgressiveDownload;
 import gg.moonflower.etched.client.sound.SoundCache;
 import gg.moonflower.pollen.api.util.AsyncInputStream;
 import net.minecraft.Util;
-import net.minecraft.util.HttpUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 /**
  * @author Ocelot
  */
 public class RawAudioSource implements AudioSource {
 
+    private static final Logger LOGGER = LogManager.getLogger();
+
     private final CompletableFuture<AsyncInputStream.InputStreamSupplier> locationFuture;
-    private CompletableFuture<InputStream> stream;
+    private final ProgressiveDownload progressive;
+    private final DownloadGroup group;
 
     public RawAudioSource(String hash, URL url, @Nullable DownloadProgressListener listener, boolean temporary, AudioFileType type) throws IOException {
+        this(hash, url, listener, temporary, type, new DownloadGroup());
+    }
+
+    public RawAudioSource(String hash, URL url, @Nullable DownloadProgressListener listener, boolean temporary, AudioFileType type, DownloadGroup group) throws IOException {
+        this(hash, url, listener, temporary, type, group, null);
+    }
+
+    /**
+     * @param hash      The hash to store the file under
+     * @param url       The URL of the file
+     * @param listener  The listener for download progress
+     * @param temporary Whether the file should be stored in the temporary cache
+     * @param type      The type of audio to accept
+     * @param group     The group to schedule all downloads in
+     * @param resolver  A function to resolve the URL again if it stops working before any data is downloaded or <code>null</code> to fail instead
+     */
+    public RawAudioSource(String hash, URL url, @Nullable DownloadProgressListener listener, boolean temporary, AudioFileType type, DownloadGroup group, @Nullable Supplier<CompletableFuture<URL[]>> resolver) throws IOException {
         Path location = SoundCache.resolveFilePath(hash, temporary);
-        this.locationFuture = CompletableFuture.supplyAsync(() -> AudioSource.downloadTo(location, url, listener, type), HttpUtil.DOWNLOAD_EXECUTOR);
+        this.group = group;
+        this.progressive = type.isFile() ? new ProgressiveDownload(location) : null;
+
+        CompletableFuture<AsyncInputStream.InputStreamSupplier> download = group.supplyAsync(DownloadScheduler.Priority.AUDIBLE, () -> AudioSource.downloadTo(location, url, listener, type, this.progressive, group));
+        this.locationFuture = resolver == null ? download : download.handle((stream, e) -> {
+            if (e == null)
+                return CompletableFuture.completedFuture(stream);
+            if (SoundCache.isCancellation(e) || group.isCancelled() || (this.progressive != null && !this.progressive.reset())) {
+                CompletableFuture<AsyncInputStream.InputStreamSupplier> future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+                return future;
+            }
+
+            LOGGER.info("Audio URL stopped working, resolving it again");
+            return resolver.get().thenCompose(urls -> {
+                if (urls.length != 1)
+                    throw new CompletionException(new IOException("Expected 1 audio URL, got " + urls.length));
+                return group.supplyAsync(DownloadScheduler.Priority.AUDIBLE, () -> AudioSource.downloadTo(location, urls[0], listener, type, this.progressive, group));
+            });
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Creates a source for a file that is already completely downloaded into the cache.
+     *
+     * @param location The cached file
+     */
+    public RawAudioSource(Path location) {
+        this.group = null;
+        this.progressive = null;
+        this.locationFuture = CompletableFuture.completedFuture(() -> Files.newInputStream(location));
     }
 
     @Override
     public CompletableFuture<InputStream> openStream() {
-        if (this.stream != null)
-            return this.stream;
-        return this.stream = this.locationFuture.thenApplyAsync(stream -> {
+        if (this.group != null && this.group.isCancelled()) {
+            CompletableFuture<InputStream> future = new CompletableFuture<>();
+            future.completeExceptionally(new CancellationException("Download was cancelled"));
+            return future;
+        }
+
+        // Start decoding as soon as the first bytes land in the cache instead of waiting for the whole file
+        CompletableFuture<AsyncInputStream.InputStreamSupplier> supplier = this.progressive == null ? this.locationFuture : this.locationFuture.applyToEither(this.progressive.getStartFuture().thenApply(__ -> this.progressive::openStream), location -> location);
+        return supplier.thenApplyAsync(stream -> {
             try {
                 return stream.get();
             } catch (Exception e) {
@@ -39,4 +102,9 @@ public class RawAudioSource implements AudioSource {
             }
         }, Util.ioPool());
     }
+
+    @Override
+    public CompletableFuture<?> getDownloadFuture() {
+        return this.locationFuture;
+    }
 }
@@ -1,20 +1,28 @@
 package gg.moonflower.etched.api.sound.source;
 
 import gg.moonflower.etched.api.util.AccumulatingDownloadProgressListener;
+import gg.moonflower.etched.api.util.DownloadGroup;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.DownloadScheduler;
+import gg.moonflower.etched.api.util.RetryPolicy;
 import gg.moonflower.etched.api.util.StreamingInputStream;
 import gg.moonflower.etched.client.sound.SoundCache;
+import gg.moonflower.etched.core.Etched;
+import gg.moonflower.pollen.api.util.AsyncInputStream;
 import net.minecraft.Util;
-import net.minecraft.util.HttpUtil;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 /**
@@ -22,39 +30,140 @@ import java.util.stream.IntStream;
  */
 public class StreamingAudioSource implements AudioSource {
 
+    private static final Logger LOGGER = LogManager.getLogger();
+
     private final AudioFileType type;
+    private final DownloadGroup group;
     private final Path[] locations;
-    private final URL[] urls;
+    private final Supplier<CompletableFuture<URL[]>> resolver;
     private final CompletableFuture<?> downloadFuture;
-    private CompletableFuture<InputStream> stream;
+    private volatile URL[] urls;
+    private CompletableFuture<URL[]> refresh;
 
     public StreamingAudioSource(String hash, URL[] urls, @Nullable DownloadProgressListener progressListener, boolean temporary, AudioFileType type) throws IOException {
+        this(hash, urls, progressListener, temporary, type, new DownloadGroup());
+    }
+
+    public StreamingAudioSource(String hash, URL[] urls, @Nullable DownloadProgressListener progressListener, boolean temporary, AudioFileType type, DownloadGroup group) throws IOException {
+        this(hash, urls, progressListener, temporary, type, group, null);
+    }
+
+    /**
+     * @param hash             The hash to store segments under
+     * @param urls             The URLs of each segment
+     * @param progressListener The listener for download progress
+     * @param temporary        Whether segments should be stored in the temporary cache
+     * @param type             The type of audio to accept
+     * @param group            The group to schedule all downloads in
+     * @param resolver         A function to resolve the segment URLs again after they expire or <code>null</code> if they never expire
+     */
+    public StreamingAudioSource(String hash, URL[] urls, @Nullable DownloadProgressListener progressListener, boolean temporary, AudioFileType type, DownloadGroup group, @Nullable Supplier<CompletableFuture<URL[]>> resolver) throws IOException {
         this.type = type;
+        this.group = group;
         this.locations = new Path[urls.length];
         for (int i = 0; i < urls.length; i++)
             this.locations[i] = SoundCache.resolveFilePath(DigestUtils.sha1Hex(hash + i), temporary);
+        this.resolver = resolver;
         this.urls = urls;
         int files = Math.min(urls.length, 3);
         DownloadProgressListener accumulatingListener = progressListener != null ? new AccumulatingDownloadProgressListener(progressListener, files) : null;
-        this.downloadFuture = CompletableFuture.allOf(IntStream.range(0, files).mapToObj(i -> CompletableFuture.runAsync(() -> AudioSource.downloadTo(this.locations[i], urls[i], accumulatingListener, type), HttpUtil.DOWNLOAD_EXECUTOR)).toArray(CompletableFuture[]::new));
+        this.downloadFuture = CompletableFuture.allOf(IntStream.range(0, files).mapToObj(i -> this.download(i, DownloadScheduler.Priority.AUDIBLE, accumulatingListener, true)).toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Creates a source for segments that are already in the cache. The segment URLs are only resolved if a segment has to be downloaded again.
+     *
+     * @param hash      The hash the segments are stored under
+     * @param segments  The number of segments
+     * @param temporary Whether the segments are stored in the temporary cache
+     * @param type      The type of audio to accept
+     * @param group     The group to schedule all downloads in
+     * @param resolver  A function to resolve the segment URLs
+     */
+    public StreamingAudioSource(String hash, int segments, boolean temporary, AudioFileType type, DownloadGroup group, Supplier<CompletableFuture<URL[]>> resolver) throws IOException {
+        this.type = type;
+        this.group = group;
+        this.locations = new Path[segments];
+        for (int i = 0; i < segments; i++)
+            this.locations[i] = SoundCache.resolveFilePath(DigestUtils.sha1Hex(hash + i), temporary);
+        this.resolver = resolver;
+        this.urls = new URL[segments];
+        this.downloadFuture = CompletableFuture.completedFuture(null);
+    }
+
+    private static boolean isExpired(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+            if (cause instanceof RetryPolicy.StatusException) {
+                int statusCode = ((RetryPolicy.StatusException) cause).getStatusCode();
+                return statusCode == 401 || statusCode == 403 || statusCode == 410;
+            }
+        return false;
+    }
+
+    /**
+     * Resolves the segment URLs again. Segments that fail together share a single request, and segments that fail after the URLs were already replaced only retry with the new URLs.
+     */
+    private synchronized CompletableFuture<URL[]> refresh(URL[] expired) {
+        if (this.urls != expired)
+            return CompletableFuture.completedFuture(this.urls);
+        if (this.refresh != null && !this.refresh.isDone())
+            return this.refresh;
+
+        LOGGER.info("Resolving segment URLs again");
+        this.refresh = this.resolver.get().thenApply(refreshed -> {
+            // Segments are cached by index, so a playlist with a different layout cannot continue where playback is
+            if (refreshed.length != expired.length)
+                throw new CompletionException(new IOException("Playlist changed from " + expired.length + " to " + refreshed.length + " segments"));
+            this.urls = refreshed;
+            return refreshed;
+        });
+        return this.refresh;
+    }
+
+    private CompletableFuture<AsyncInputStream.InputStreamSupplier> download(int index, DownloadScheduler.Priority priority, @Nullable DownloadProgressListener listener, boolean retry) {
+        URL[] urls = this.urls;
+        if (urls[index] == null) {
+            // Segments found in the cache are read directly, and the URLs are only resolved once a segment is missing
+            Path location = this.locations[index];
+            String key = location.getFileName().toString();
+            return this.group.supplyAsync(priority, () -> SoundCache.isValid(location, key) && SoundCache.verify(location, key)).thenCompose(cached -> {
+                if (cached)
+                    return CompletableFuture.completedFuture(() -> Files.newInputStream(location));
+                return this.refresh(urls).thenCompose(__ -> this.download(index, priority, listener, retry));
+            });
+        }
+
+        return this.group.supplyAsync(priority, () -> AudioSource.downloadTo(this.locations[index], urls[index], listener, this.type, null, this.group)).handle((stream, e) -> {
+            if (e == null)
+                return CompletableFuture.completedFuture(stream);
+            if (!retry || this.resolver == null || !isExpired(e)) {
+                CompletableFuture<AsyncInputStream.InputStreamSupplier> future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+                return future;
+            }
+            return this.refresh(urls).thenCompose(__ -> this.download(index, priority, listener, false));
+        }).thenCompose(future -> future);
     }
 
     @Override
     public CompletableFuture<InputStream> openStream() {
-        if (this.stream != null)
-            return this.stream;
-        return this.stream = this.downloadFuture.thenApplyAsync(__ -> {
+        return this.downloadFuture.thenApplyAsync(__ -> {
             try {
-                return new StreamingInputStream(this.urls, i -> CompletableFuture.supplyAsync(() -> AudioSource.downloadTo(this.locations[i], this.urls[i], null, this.type), HttpUtil.DOWNLOAD_EXECUTOR).thenApplyAsync(stream -> {
+                return new StreamingInputStream(this.urls, i -> this.download(i, DownloadScheduler.Priority.PREFETCH, null, true).thenApplyAsync(stream -> {
                     try {
                         return stream.get();
                     } catch (Exception e) {
                         throw new CompletionException("Failed to open channel", e);
                     }
-                }, Util.ioPool()));
+                }, Util.ioPool()), Etched.CLIENT_CONFIG.minStreamPrefetch.get(), Etched.CLIENT_CONFIG.maxStreamPrefetch.get());
             } catch (Exception e) {
                 throw new CompletionException("Failed to open stream", e);
             }
         }, Util.ioPool());
     }
+
+    @Override
+    public CompletableFuture<?> getDownloadFuture() {
+        return this.downloadFuture;
+    }
 }
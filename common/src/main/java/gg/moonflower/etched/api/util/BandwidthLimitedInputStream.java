@@ -0,0 +1,66 @@
+package gg.moonflower.etched.api.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+/**
+ * Reads from a network stream no faster than the {@link BandwidthLimiter} allows.
+ *
+ * @author Ocelot
+ */
+public class BandwidthLimitedInputStream extends FilterInputStream {
+
+    // Small reads keep a single read from putting the limiter far into debt and blocking for a long time afterwards
+    private static final int MAX_READ = 8192;
+
+    private final Supplier<DownloadScheduler.Priority> priority;
+    private final BandwidthLimiter.WaitTime waitTime;
+
+    /**
+     * @param in       The stream to read from
+     * @param priority The current priority of the transfer. This is checked on every read, so the share of bandwidth follows the sound as it moves
+     */
+    public BandwidthLimitedInputStream(InputStream in, Supplier<DownloadScheduler.Priority> priority) {
+        this(in, priority, null);
+    }
+
+    /**
+     * @param in       The stream to read from
+     * @param priority The current priority of the transfer. This is checked on every read, so the share of bandwidth follows the sound as it moves
+     * @param waitTime The time to add any waiting for bandwidth to or <code>null</code>
+     */
+    public BandwidthLimitedInputStream(InputStream in, Supplier<DownloadScheduler.Priority> priority, @Nullable BandwidthLimiter.WaitTime waitTime) {
+        super(in);
+        this.priority = priority;
+        this.waitTime = waitTime;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1)
+            BandwidthLimiter.acquire(1, this.priority.get(), this.waitTime);
+        return value;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, Math.min(len, MAX_READ));
+        if (read > 0)
+            BandwidthLimiter.acquire(read, this.priority.get(), this.waitTime);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, MAX_READ));
+        if (skipped > 0)
+            BandwidthLimiter.acquire((int) skipped, this.priority.get(), this.waitTime);
+        return skipped;
+    }
+}
@@ -0,0 +1,191 @@
+package gg.moonflower.etched.api.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the combined download speed of all Etched transfers with a token bucket. While the limit is reached, waiting transfers share the bandwidth by weight so audible tracks are not starved by prefetching or cover art.
+ *
+ * @author Ocelot
+ */
+public final class BandwidthLimiter {
+
+    /**
+     * The slowest combined download speed that can be set in bytes per second
+     */
+    public static final long MIN_RATE = 16384;
+
+    private static final DownloadScheduler.Priority[] PRIORITIES = DownloadScheduler.Priority.values();
+    private static final int[] WEIGHTS = {8, 4, 1, 1};
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final Object LOCK = new Object();
+    private static final int[] WAITING = new int[PRIORITIES.length];
+    private static final double[] FINISH = new double[PRIORITIES.length];
+    private static long rate;
+    private static double tokens;
+    private static long lastRefill = System.nanoTime();
+
+    private BandwidthLimiter() {
+    }
+
+    /**
+     * Sets the maximum combined download speed. Limits below {@link #MIN_RATE} are raised to it, since slower transfers would take minutes to fill a single read buffer.
+     *
+     * @param bytesPerSecond The number of bytes that can be downloaded each second or <code>0</code> for no limit
+     */
+    public static void setRate(long bytesPerSecond) {
+        long newRate = bytesPerSecond > 0 ? Math.max(MIN_RATE, bytesPerSecond) : 0;
+        synchronized (LOCK) {
+            if (rate == newRate)
+                return;
+            refill();
+            rate = newRate;
+            tokens = Math.min(tokens, getCapacity());
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * @return The maximum combined download speed in bytes per second or <code>0</code> for no limit
+     */
+    public static long getRate() {
+        synchronized (LOCK) {
+            return rate;
+        }
+    }
+
+    /**
+     * Blocks until the specified number of bytes can be downloaded without exceeding the limit.
+     *
+     * @param bytes    The number of bytes about to be read
+     * @param priority The priority of the transfer
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    public static void acquire(int bytes, DownloadScheduler.Priority priority) throws InterruptedIOException {
+        acquire(bytes, priority, null);
+    }
+
+    /**
+     * Blocks until the specified number of bytes can be downloaded without exceeding the limit.
+     *
+     * @param bytes    The number of bytes about to be read
+     * @param priority The priority of the transfer
+     * @param waitTime The time to add any waiting to or <code>null</code>
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    public static void acquire(int bytes, DownloadScheduler.Priority priority, @Nullable WaitTime waitTime) throws InterruptedIOException {
+        if (bytes <= 0)
+            return;
+
+        synchronized (LOCK) {
+            if (rate <= 0)
+                return;
+
+            int index = priority.ordinal();
+            // A priority that has been idle should not be able to spend credit it built up while nothing was waiting
+            if (WAITING[index] == 0)
+                FINISH[index] = Math.max(FINISH[index], getVirtualTime());
+            WAITING[index]++;
+
+            boolean waiting = false;
+            try {
+                while (true) {
+                    refill();
+                    if (rate <= 0)
+                        return;
+
+                    // Large reads are allowed to take the bucket into debt so they cannot wait forever
+                    double cost = Math.min(bytes, getCapacity());
+                    if (tokens >= cost && isNext(index)) {
+                        tokens -= bytes;
+                        FINISH[index] += (double) bytes / WEIGHTS[index];
+                        LOCK.notifyAll();
+                        return;
+                    }
+
+                    if (waitTime != null && !waiting) {
+                        waitTime.begin();
+                        waiting = true;
+                    }
+                    long waitNanos = tokens >= cost ? TimeUnit.MILLISECONDS.toNanos(10) : (long) ((cost - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+                    LOCK.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                if (waiting)
+                    waitTime.end();
+                WAITING[index]--;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    private static double getCapacity() {
+        return Math.max(8192, rate * BURST_NANOS / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static void refill() {
+        long now = System.nanoTime();
+        if (rate > 0)
+            tokens = Math.min(getCapacity(), tokens + (now - lastRefill) * rate / (double) TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    private static double getVirtualTime() {
+        double time = Double.MAX_VALUE;
+        double latest = 0;
+        boolean waiting = false;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            latest = Math.max(latest, FINISH[i]);
+            if (WAITING[i] > 0) {
+                time = Math.min(time, FINISH[i]);
+                waiting = true;
+            }
+        }
+        return waiting ? time : latest;
+    }
+
+    /**
+     * Checks whether the specified priority has received the smallest share of bandwidth for its weight out of all waiting priorities.
+     */
+    private static boolean isNext(int index) {
+        for (int i = 0; i < PRIORITIES.length; i++)
+            if (i != index && WAITING[i] > 0 && (FINISH[i] < FINISH[index] || (FINISH[i] == FINISH[index] && i < index)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Adds up the time the streams of a transfer spend waiting for bandwidth, so a throttled transfer is not mistaken for a stalled one. Time where several streams wait at once is only counted once.
+     *
+     * @author Ocelot
+     */
+    public static class WaitTime {
+
+        private int waiting;
+        private long since;
+        private long total;
+
+        private synchronized void begin() {
+            if (this.waiting++ == 0)
+                this.since = System.nanoTime();
+        }
+
+        private synchronized void end() {
+            if (--this.waiting == 0)
+                this.total += System.nanoTime() - this.since;
+        }
+
+        /**
+         * @return The total number of nanoseconds spent waiting, including any wait in progress
+         */
+        public synchronized long get() {
+            return this.waiting > 0 ? this.total + System.nanoTime() - this.since : this.total;
+        }
+    }
+}
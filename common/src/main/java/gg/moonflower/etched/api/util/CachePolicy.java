@@ -0,0 +1,207 @@
+package gg.moonflower.etched.api.util;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How long a downloaded response may be cached for and how it can be revalidated once it expires.
+ *
+ * @author Ocelot
+ */
+public final class CachePolicy {
+
+    /**
+     * Indicates a cache of "forever"
+     */
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final long maxAge;
+    private final long staleWhileRevalidate;
+    private final boolean store;
+    private final String etag;
+    private final String lastModified;
+
+    /**
+     * @param maxAge               The number of seconds the response is fresh for
+     * @param staleWhileRevalidate The number of seconds after expiring the response may still be used while it is revalidated
+     * @param store                Whether the response may be stored at all
+     * @param etag                 The entity tag of the response or <code>null</code>
+     * @param lastModified         The last time the response was modified or <code>null</code>
+     */
+    public CachePolicy(long maxAge, long staleWhileRevalidate, boolean store, @Nullable String etag, @Nullable String lastModified) {
+        this.maxAge = maxAge;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.store = store;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Reads the caching headers of the specified response.
+     *
+     * @param response The response to read
+     * @return The policy described by the response
+     */
+    public static CachePolicy fromResponse(HttpResponse response) {
+        long cacheTime = FOREVER;
+        long staleWhileRevalidate = 0;
+        int cachePriority = 0;
+        boolean cache = true;
+
+        Header cacheControl = response.getFirstHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (HeaderElement element : cacheControl.getElements()) {
+                switch (element.getName()) {
+                    case "max-age": {
+                        if (cachePriority > 0)
+                            break;
+                        try {
+                            cacheTime = Integer.parseInt(element.getValue());
+                        } catch (NumberFormatException e) {
+                            LOGGER.error("Invalid max-age: " + element.getValue());
+                        }
+                        break;
+                    }
+                    case "s-maxage": {
+                        cachePriority = 1;
+                        try {
+                            cacheTime = Integer.parseInt(element.getValue());
+                        } catch (NumberFormatException e) {
+                            LOGGER.error("Invalid s-maxage: " + element.getValue());
+                        }
+                        break;
+                    }
+                    // Skip must-revalidate
+                    // Skip no-cache because "hidden" files are already in the temp directory
+                    case "no-store": {
+                        cache = false;
+                        break;
+                    }
+                    // Skip private
+                    // Skip public
+                    // Skip no-transform
+                    // Skip immutable
+                    case "stale-while-revalidate": {
+                        try {
+                            staleWhileRevalidate = Integer.parseInt(element.getValue());
+                        } catch (NumberFormatException e) {
+                            LOGGER.error("Invalid stale-while-revalidate: " + element.getValue());
+                        }
+                        break;
+                    }
+                    // Skip stale-if-error
+                }
+            }
+        }
+
+        Header ageHeader = response.getFirstHeader("Age");
+        if (ageHeader != null) {
+            try {
+                cacheTime -= Integer.parseInt(ageHeader.getValue());
+            } catch (NumberFormatException e) {
+                LOGGER.error("Invalid Age: " + ageHeader.getValue());
+            }
+        }
+
+        // Weak tags still work for revalidation, so they are kept as received and only skipped for range requests
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return new CachePolicy(cacheTime, staleWhileRevalidate, cache, etag != null ? etag.getValue() : null, lastModified != null ? lastModified.getValue() : null);
+    }
+
+    /**
+     * Checks whether the specified entity tag is weak. Weak tags can be sent with <code>If-None-Match</code>, but not with <code>If-Range</code>.
+     *
+     * @param etag The entity tag to check
+     * @return Whether the tag is weak
+     */
+    public static boolean isWeak(String etag) {
+        return etag.startsWith("W/");
+    }
+
+    /**
+     * Creates a copy of this policy that uses the specified validators if the response did not provide its own.
+     *
+     * @param etag         The fallback entity tag
+     * @param lastModified The fallback modification time
+     * @return A policy with validators
+     */
+    public CachePolicy withFallbackValidators(@Nullable String etag, @Nullable String lastModified) {
+        return new CachePolicy(this.maxAge, this.staleWhileRevalidate, this.store, this.etag != null ? this.etag : etag, this.lastModified != null ? this.lastModified : lastModified);
+    }
+
+    /**
+     * Calculates the time this policy expires at.
+     *
+     * @param now The current time in seconds
+     * @return The expiration time in seconds
+     */
+    public long getExpiration(long now) {
+        return this.maxAge > FOREVER - now ? FOREVER : now + this.maxAge;
+    }
+
+    /**
+     * @return Whether the response can be stored and has not already expired
+     */
+    public boolean isCacheable() {
+        return this.store && this.maxAge > 0;
+    }
+
+    /**
+     * @return Whether a validator is available that can be sent with <code>If-Range</code> to resume the response
+     */
+    public boolean hasRangeValidator() {
+        return this.getRangeValidator() != null;
+    }
+
+    /**
+     * @return The strong entity tag or the modification time to send with <code>If-Range</code> or <code>null</code> if there is none
+     */
+    @Nullable
+    public String getRangeValidator() {
+        return this.etag != null && !isWeak(this.etag) ? this.etag : this.lastModified;
+    }
+
+    /**
+     * @return The number of seconds the response is fresh for
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return The number of seconds after expiring the response may still be used while it is revalidated
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return Whether the response may be stored at all
+     */
+    public boolean isStore() {
+        return store;
+    }
+
+    /**
+     * @return The entity tag of the response, which may be weak, or <code>null</code>
+     */
+    @Nullable
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return The last time the response was modified or <code>null</code>
+     */
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+}
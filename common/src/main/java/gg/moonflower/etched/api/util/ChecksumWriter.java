@@ -0,0 +1,142 @@
+package gg.moonflower.etched.api.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a download into a file while calculating a CRC32 of the contents, so the file never has to be read back to be checksummed. Each chunk is read once into a heap array that feeds both the checksum and the file.
+ *
+ * @author Ocelot
+ */
+public class ChecksumWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final FileChannel channel;
+    private final CRC32 checksum;
+    private final byte[] buffer;
+    private long written;
+
+    private ChecksumWriter(FileChannel channel) {
+        this.channel = channel;
+        this.checksum = new CRC32();
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Opens the specified file for writing.
+     *
+     * @param file   The file to write into
+     * @param append Whether to continue after the data already in the file. The existing data is read once to continue the checksum
+     * @return A new writer
+     * @throws IOException If the file could not be opened
+     */
+    public static ChecksumWriter open(Path file, boolean append) throws IOException {
+        FileChannel channel = append ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ChecksumWriter writer = new ChecksumWriter(channel);
+        try {
+            if (append) {
+                ByteBuffer view = ByteBuffer.wrap(writer.buffer);
+                int read;
+                while ((read = channel.read(view)) != -1) {
+                    writer.checksum.update(writer.buffer, 0, read);
+                    view.clear();
+                }
+                writer.written = channel.position();
+            }
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+        return writer;
+    }
+
+    /**
+     * Calculates the checksum of an entire file.
+     *
+     * @param file The file to read
+     * @return The CRC32 of the file as a hex string
+     * @throws IOException If the file could not be read
+     */
+    public static String checksum(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+            return format(checksum);
+        }
+    }
+
+    private static String format(CRC32 checksum) {
+        return String.format("%08x", checksum.getValue());
+    }
+
+    /**
+     * Copies the remaining contents of the specified stream to the end of the file.
+     *
+     * @param stream   The stream to read from
+     * @param listener A listener notified with the total number of bytes in the file after each write or <code>null</code>
+     * @throws IOException If any error occurs while reading or writing
+     */
+    public void transferFrom(InputStream stream, @Nullable LongConsumer listener) throws IOException {
+        this.transferFrom(stream, Long.MAX_VALUE, listener);
+    }
+
+    /**
+     * Copies the remaining contents of the specified stream to the end of the file.
+     *
+     * @param stream   The stream to read from
+     * @param maxSize  The maximum number of bytes the file is allowed to contain
+     * @param listener A listener notified with the total number of bytes in the file after each write or <code>null</code>
+     * @throws IOException If any error occurs while reading or writing or the file grows larger than <code>maxSize</code>
+     */
+    public void transferFrom(InputStream stream, long maxSize, @Nullable LongConsumer listener) throws IOException {
+        int read;
+        while ((read = stream.read(this.buffer)) != -1) {
+            if (read == 0)
+                continue;
+            if (this.written + read > maxSize)
+                throw new IOException("Filesize was bigger than maximum allowed (got >= " + (this.written + read) + ", limit was " + maxSize + ")");
+
+            this.checksum.update(this.buffer, 0, read);
+            ByteBuffer data = ByteBuffer.wrap(this.buffer, 0, read);
+            while (data.hasRemaining())
+                this.written += this.channel.write(data);
+
+            if (listener != null)
+                listener.accept(this.written);
+        }
+    }
+
+    /**
+     * @return The total number of bytes in the file
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return The CRC32 of everything in the file as a hex string
+     */
+    public String getChecksum() {
+        return format(this.checksum);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
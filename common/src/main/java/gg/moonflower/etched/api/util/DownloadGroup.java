@@ -0,0 +1,176 @@
+package gg.moonflower.etched.api.util;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * All scheduled work needed to play a single sound. The priority of the group can be lowered or parked while the sound is far away, and cancelled once it is no longer needed.
+ *
+ * @author Ocelot
+ */
+public class DownloadGroup {
+
+    private final Set<Transfer> transfers;
+    private volatile DownloadScheduler.Priority priority;
+    private volatile boolean parked;
+    private volatile boolean cancelled;
+
+    public DownloadGroup() {
+        this.transfers = ConcurrentHashMap.newKeySet();
+        this.priority = DownloadScheduler.Priority.AUDIBLE;
+    }
+
+    /**
+     * Retrieves an executor that queues tasks in this group.
+     *
+     * @param priority The priority of the tasks while the group itself has the highest priority
+     * @return An executor for that priority
+     */
+    public Executor executor(DownloadScheduler.Priority priority) {
+        return task -> DownloadScheduler.submit(priority, this, task);
+    }
+
+    /**
+     * Queues a task in this group. The task is skipped if the group is cancelled before it starts.
+     *
+     * @param priority The priority of the task while the group itself has the highest priority
+     * @param supplier The task to run
+     * @return A future for the result of the task
+     */
+    public <T> CompletableFuture<T> supplyAsync(DownloadScheduler.Priority priority, Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (this.cancelled)
+                throw new CancellationException("Download was cancelled");
+            return supplier.get();
+        }, this.executor(priority));
+    }
+
+    /**
+     * Queues a task in this group. The task is skipped if the group is cancelled before it starts.
+     *
+     * @param priority The priority of the task while the group itself has the highest priority
+     * @param task     The task to run
+     * @return A future for the completion of the task
+     */
+    public CompletableFuture<Void> runAsync(DownloadScheduler.Priority priority, Runnable task) {
+        return this.supplyAsync(priority, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Sets the highest priority any task in this group can run at. Tasks that already have a lower priority keep it.
+     *
+     * @param priority The new priority
+     */
+    public void setPriority(DownloadScheduler.Priority priority) {
+        if (this.priority == priority && !this.parked)
+            return;
+        this.priority = priority;
+        this.parked = false;
+        DownloadScheduler.update();
+    }
+
+    /**
+     * Stops queued tasks in this group from starting until a priority is set again. Tasks that are already running are not affected.
+     */
+    public void park() {
+        this.parked = true;
+    }
+
+    /**
+     * Cancels all tasks in this group that have not started yet and aborts every transfer in progress.
+     */
+    public void cancel() {
+        this.cancel(Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Cancels all tasks in this group that have not started yet and aborts transfers in progress, except for those close enough to completion to be worth caching.
+     *
+     * @param finishThreshold The fraction of a transfer that must already be downloaded for it to be allowed to finish
+     */
+    public void cancel(float finishThreshold) {
+        if (this.cancelled)
+            return;
+        this.cancelled = true;
+        for (Transfer transfer : this.transfers)
+            if (transfer.getProgress() < finishThreshold)
+                transfer.abort();
+        DownloadScheduler.update();
+    }
+
+    /**
+     * Adds a transfer that should be aborted if this group is cancelled. If the group is already cancelled, the transfer is aborted immediately.
+     *
+     * @param transfer The transfer in progress
+     */
+    public void register(Transfer transfer) {
+        this.transfers.add(transfer);
+        if (this.cancelled) {
+            this.transfers.remove(transfer);
+            transfer.abort();
+        }
+    }
+
+    /**
+     * Removes a transfer once it has finished.
+     *
+     * @param transfer The transfer to remove
+     */
+    public void unregister(Transfer transfer) {
+        this.transfers.remove(transfer);
+    }
+
+    /**
+     * Calculates the priority a task in this group should run at.
+     *
+     * @param priority The priority the task was submitted with
+     * @return The lower of the task priority and the group priority
+     */
+    public DownloadScheduler.Priority getPriority(DownloadScheduler.Priority priority) {
+        return priority.ordinal() > this.priority.ordinal() ? priority : this.priority;
+    }
+
+    /**
+     * @return The highest priority any task in this group can run at
+     */
+    public DownloadScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return Whether queued tasks in this group are waiting until the sound comes back into range
+     */
+    public boolean isParked() {
+        return parked;
+    }
+
+    /**
+     * @return Whether this group is no longer needed
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * A network transfer that can be aborted while it is in progress.
+     */
+    public interface Transfer {
+
+        /**
+         * @return The fraction of the transfer that has completed from <code>0</code> to <code>1</code>
+         */
+        float getProgress();
+
+        /**
+         * Closes the connection, causing any reads to fail.
+         */
+        void abort();
+    }
+}
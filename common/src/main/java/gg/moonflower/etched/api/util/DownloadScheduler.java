@@ -0,0 +1,266 @@
+package gg.moonflower.etched.api.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all Etched network work in fixed size pools. Queued work is started in order of {@link Priority}, and each priority has its own concurrency limit so lower priorities cannot fill every slot. Work that helps a running download, like extra byte ranges, runs in a separate fixed pool so it can never wait behind the downloads it belongs to.
+ *
+ * @author Ocelot
+ */
+public final class DownloadScheduler {
+
+    private static final int MAX_CONCURRENT = 8;
+    private static final int MAX_HELPERS = 8;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final ExecutorService WORKERS = createPool(MAX_CONCURRENT, "Etched Download %d");
+    private static final ExecutorService HELPERS = createPool(MAX_HELPERS, "Etched Download Helper %d");
+    private static final Object LOCK = new Object();
+    private static final List<Entry> QUEUE = new LinkedList<>();
+    private static final int[] RUNNING = new int[PRIORITIES.length];
+    private static final int[] PEAK_QUEUED = new int[PRIORITIES.length];
+    private static final Executor[] EXECUTORS = new Executor[PRIORITIES.length];
+    private static final ThreadLocal<Priority> CURRENT = new ThreadLocal<>();
+    private static int running;
+
+    static {
+        for (Priority priority : PRIORITIES)
+            EXECUTORS[priority.ordinal()] = task -> submit(priority, task);
+    }
+
+    private DownloadScheduler() {
+    }
+
+    private static ExecutorService createPool(int threads, String nameFormat) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Retrieves an executor that queues tasks with the specified priority.
+     *
+     * @param priority The priority to run tasks with
+     * @return An executor for that priority
+     */
+    public static Executor executor(Priority priority) {
+        return EXECUTORS[priority.ordinal()];
+    }
+
+    /**
+     * Retrieves the executor for work that belongs to a download that is already running, such as extra byte ranges or reading from an open stream. This work skips the priority queue, since the download has already been given a slot, but shares a fixed number of threads. Tasks wait for a free thread once every helper is busy.
+     *
+     * @return The executor for running downloads
+     */
+    public static Executor workers() {
+        return HELPERS;
+    }
+
+    /**
+     * Queues a task to run once a slot for its priority is free.
+     *
+     * @param priority The priority of the task
+     * @param task     The task to run
+     */
+    public static void submit(Priority priority, Runnable task) {
+        submit(priority, null, task);
+    }
+
+    /**
+     * Queues a task to run once a slot for its priority is free.
+     *
+     * @param priority The priority of the task
+     * @param group    The group the task belongs to or <code>null</code>
+     * @param task     The task to run
+     */
+    public static void submit(Priority priority, @Nullable DownloadGroup group, Runnable task) {
+        synchronized (LOCK) {
+            Entry entry = new Entry(priority, group, task);
+            QUEUE.add(entry);
+            int index = entry.getPriority().ordinal();
+            PEAK_QUEUED[index] = Math.max(PEAK_QUEUED[index], countQueued(entry.getPriority()));
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts any queued tasks that became eligible after a group changed its priority.
+     */
+    static void update() {
+        dispatch();
+    }
+
+    private static void dispatch() {
+        synchronized (LOCK) {
+            while (running < MAX_CONCURRENT) {
+                Entry next = null;
+                Priority nextPriority = null;
+                for (Entry entry : QUEUE) {
+                    if (entry.isParked())
+                        continue;
+
+                    Priority priority = entry.getPriority();
+                    if (RUNNING[priority.ordinal()] >= priority.getMaxConcurrent())
+                        continue;
+                    if (next == null || priority.ordinal() < nextPriority.ordinal()) {
+                        next = entry;
+                        nextPriority = priority;
+                        if (priority.ordinal() == 0)
+                            break;
+                    }
+                }
+                if (next == null)
+                    return;
+
+                QUEUE.remove(next);
+                Priority priority = nextPriority;
+                Runnable task = next.task;
+                Priority taskPriority = next.priority;
+                RUNNING[priority.ordinal()]++;
+                running++;
+                WORKERS.execute(() -> {
+                    CURRENT.set(taskPriority);
+                    try {
+                        task.run();
+                    } finally {
+                        CURRENT.remove();
+                        synchronized (LOCK) {
+                            RUNNING[priority.ordinal()]--;
+                            running--;
+                        }
+                        dispatch();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return The priority the task running on this thread was submitted with or <code>null</code> if this thread is not running a scheduled task
+     */
+    @Nullable
+    public static Priority getCurrentPriority() {
+        return CURRENT.get();
+    }
+
+    private static int countQueued(Priority priority) {
+        int count = 0;
+        for (Entry entry : QUEUE)
+            if (!entry.isParked() && entry.getPriority() == priority)
+                count++;
+        return count;
+    }
+
+    /**
+     * @param priority The priority to check
+     * @return The number of tasks waiting for a slot
+     */
+    public static int getQueued(Priority priority) {
+        synchronized (LOCK) {
+            return countQueued(priority);
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting for their sound to come back into range
+     */
+    public static int getParked() {
+        synchronized (LOCK) {
+            int count = 0;
+            for (Entry entry : QUEUE)
+                if (entry.isParked())
+                    count++;
+            return count;
+        }
+    }
+
+    /**
+     * @param priority The priority to check
+     * @return The largest number of tasks that have been waiting for a slot at once
+     */
+    public static int getPeakQueued(Priority priority) {
+        synchronized (LOCK) {
+            return PEAK_QUEUED[priority.ordinal()];
+        }
+    }
+
+    /**
+     * @param priority The priority to check
+     * @return The number of tasks currently running
+     */
+    public static int getRunning(Priority priority) {
+        synchronized (LOCK) {
+            return RUNNING[priority.ordinal()];
+        }
+    }
+
+    private static class Entry {
+
+        private final Priority priority;
+        private final DownloadGroup group;
+        private final Runnable task;
+
+        private Entry(Priority priority, @Nullable DownloadGroup group, Runnable task) {
+            this.priority = priority;
+            this.group = group;
+            this.task = task;
+        }
+
+        private boolean isParked() {
+            return this.group != null && this.group.isParked() && !this.group.isCancelled();
+        }
+
+        private Priority getPriority() {
+            if (this.group == null)
+                return this.priority;
+            // Cancelled tasks only need to run long enough to fail, so they should not wait behind other work
+            return this.group.isCancelled() ? Priority.AUDIBLE : this.group.getPriority(this.priority);
+        }
+    }
+
+    /**
+     * The order network work is started in. Earlier values always start first.
+     *
+     * @author Ocelot
+     */
+    public enum Priority {
+        /**
+         * Audio for a track that is about to be heard.
+         */
+        AUDIBLE(6),
+        /**
+         * Audio that will be needed later, such as upcoming stream segments.
+         */
+        PREFETCH(4),
+        /**
+         * Album cover art.
+         */
+        COVER(2),
+        /**
+         * Track information and cache revalidation.
+         */
+        METADATA(2);
+
+        private final int maxConcurrent;
+
+        Priority(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        /**
+         * @return The maximum number of tasks with this priority that can run at once
+         */
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package gg.moonflower.etched.api.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single connection pooled HTTP client shared by every Etched download. Connections are kept alive and reused between requests to the same host, so fetching many segments of a stream only pays for one handshake.
+ *
+ * @author Ocelot
+ */
+public final class EtchedHttpClient {
+
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+    private static final long MAX_KEEP_ALIVE = 30000;
+    private static final String PROXY_ATTRIBUTE = "etched.proxy";
+
+    /**
+     * The longest time in milliseconds to wait for a connection to be established.
+     */
+    public static final int CONNECT_TIMEOUT = 10000;
+    /**
+     * The longest time in milliseconds to wait for data from an open connection.
+     */
+    public static final int READ_TIMEOUT = 30000;
+    private static final RequestConfig DEFAULT_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT)
+            .setSocketTimeout(READ_TIMEOUT)
+            .setConnectionRequestTimeout(READ_TIMEOUT)
+            .build();
+
+    private static final PoolingHttpClientConnectionManager CONNECTION_MANAGER;
+    private static final CloseableHttpClient CLIENT;
+    private static final ScheduledExecutorService MAINTENANCE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Etched HTTP Maintenance").setDaemon(true).build());
+
+    static {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new ProxiedPlainSocketFactory())
+                .register("https", new ProxiedSSLSocketFactory())
+                .build();
+        CONNECTION_MANAGER = new PoolingHttpClientConnectionManager(registry);
+        CONNECTION_MANAGER.setMaxTotal(MAX_CONNECTIONS);
+        CONNECTION_MANAGER.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        CONNECTION_MANAGER.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(READ_TIMEOUT).build());
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, MAX_KEEP_ALIVE) : MAX_KEEP_ALIVE;
+        };
+        CLIENT = HttpClientBuilder.create()
+                .setConnectionManager(CONNECTION_MANAGER)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .setDefaultRequestConfig(DEFAULT_CONFIG)
+                .disableCookieManagement()
+                .build();
+
+        MAINTENANCE_EXECUTOR.scheduleWithFixedDelay(() -> {
+            CONNECTION_MANAGER.closeExpiredConnections();
+            CONNECTION_MANAGER.closeIdleConnections(MAX_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        }, MAX_KEEP_ALIVE, MAX_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+    }
+
+    private EtchedHttpClient() {
+    }
+
+    /**
+     * Executes the specified request using the shared client. The returned response must be closed, or its content fully consumed, to return the connection to the pool.
+     *
+     * @param request The request to execute
+     * @param proxy   The proxy to connect through
+     * @return The response from the server
+     * @throws IOException If any error occurs while connecting
+     */
+    public static CloseableHttpResponse execute(HttpUriRequest request, Proxy proxy) throws IOException {
+        return CLIENT.execute(request, createContext(proxy));
+    }
+
+    /**
+     * Opens a plain connection to the specified URL through the system proxy settings with the same timeouts as the shared client. This is only for streams that must not be tied to a pooled connection, like live radio.
+     *
+     * @param url The URL to connect to
+     * @return A new connection that has not been connected yet
+     * @throws IOException If any error occurs while opening the connection
+     */
+    public static URLConnection openConnection(URL url) throws IOException {
+        return applyTimeouts(url.openConnection());
+    }
+
+    /**
+     * Opens a plain connection to the specified URL through a specific proxy instead of the system settings.
+     *
+     * @param url   The URL to connect to
+     * @param proxy The proxy to connect through
+     * @return A new connection that has not been connected yet
+     * @throws IOException If any error occurs while opening the connection
+     * @see #openConnection(URL)
+     */
+    public static URLConnection openConnection(URL url, Proxy proxy) throws IOException {
+        return applyTimeouts(url.openConnection(proxy));
+    }
+
+    private static URLConnection applyTimeouts(URLConnection connection) {
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
+
+    private static HttpClientContext createContext(Proxy proxy) {
+        HttpClientContext context = HttpClientContext.create();
+        if (proxy.type() == Proxy.Type.HTTP && proxy.address() instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) proxy.address();
+            context.setRequestConfig(RequestConfig.copy(DEFAULT_CONFIG).setProxy(new HttpHost(address.getHostString(), address.getPort())).build());
+        } else if (proxy.type() == Proxy.Type.SOCKS) {
+            context.setAttribute(PROXY_ATTRIBUTE, proxy);
+        }
+        return context;
+    }
+
+    private static Socket createSocket(HttpContext context) {
+        Object proxy = context != null ? context.getAttribute(PROXY_ATTRIBUTE) : null;
+        return proxy instanceof Proxy ? new Socket((Proxy) proxy) : new Socket();
+    }
+
+    private static class ProxiedPlainSocketFactory extends PlainConnectionSocketFactory {
+
+        @Override
+        public Socket createSocket(HttpContext context) {
+            return EtchedHttpClient.createSocket(context);
+        }
+    }
+
+    private static class ProxiedSSLSocketFactory extends SSLConnectionSocketFactory {
+
+        private ProxiedSSLSocketFactory() {
+            super(getDefaultContext());
+        }
+
+        private static SSLContext getDefaultContext() {
+            try {
+                return SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No default SSL context is available", e);
+            }
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) {
+            return EtchedHttpClient.createSocket(context);
+        }
+    }
+}
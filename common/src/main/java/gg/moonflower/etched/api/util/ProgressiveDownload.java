@@ -0,0 +1,251 @@
+package gg.moonflower.etched.api.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+/**
+ * Allows a file to be read while it is still being downloaded. Readers block only once they catch up with the data written so far.
+ *
+ * @author Ocelot
+ */
+public class ProgressiveDownload {
+
+    private final Path file;
+    private final CompletableFuture<Void> startFuture;
+    private Path partialFile;
+    private long available;
+    private boolean complete;
+    private boolean suspended;
+    private Throwable error;
+
+    /**
+     * @param file The location the file will be moved to once the download completes
+     */
+    public ProgressiveDownload(Path file) {
+        this.file = file;
+        this.startFuture = new CompletableFuture<>();
+    }
+
+    /**
+     * Marks the download as started. Data written to the partial file can be read after this point.
+     *
+     * @param partialFile The file data is being written into
+     * @param available   The number of bytes already in the file
+     */
+    public synchronized void start(Path partialFile, long available) {
+        if (this.suspended) {
+            this.suspended = false;
+            // Readers already have the old partial file open, so the retry has to continue exactly where it stopped
+            if (this.partialFile != null && (!partialFile.equals(this.partialFile) || available <= 0 || available < this.available)) {
+                this.fail(new IOException("Download restarted from the beginning after it stalled"));
+                return;
+            }
+        }
+        this.partialFile = partialFile;
+        this.available = available;
+        this.notifyAll();
+        this.startFuture.complete(null);
+    }
+
+    /**
+     * Notifies readers that more data has been written.
+     *
+     * @param available The number of contiguous bytes from the start of the file that have been written
+     */
+    public synchronized void setAvailable(long available) {
+        if (available > this.available) {
+            this.available = available;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Marks the download as finished. The file has been moved to its final location.
+     */
+    public synchronized void complete() {
+        this.complete = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Keeps readers waiting while the transfer is retried. Failures are ignored until the download is started again or resumed.
+     */
+    public synchronized void suspend() {
+        if (!this.complete)
+            this.suspended = true;
+    }
+
+    /**
+     * Stops ignoring failures after the download was suspended.
+     */
+    public synchronized void resume() {
+        this.suspended = false;
+    }
+
+    /**
+     * Clears a failure that happened before any data was written, so the download can be started again from another URL.
+     *
+     * @return Whether the download can be started again. Once data has been written readers may already depend on it, so the failure is kept
+     */
+    public synchronized boolean reset() {
+        if (this.partialFile != null)
+            return false;
+        this.error = null;
+        this.complete = false;
+        this.suspended = false;
+        return true;
+    }
+
+    /**
+     * Marks the download as failed. Any blocked readers will throw. This is ignored while the download is suspended.
+     *
+     * @param error The reason the download failed
+     */
+    public synchronized void fail(Throwable error) {
+        if (this.complete || this.suspended)
+            return;
+        this.error = error;
+        this.complete = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Copies the specified stream into the partial file, making each chunk available to readers as soon as it is written.
+     *
+     * @param stream      The stream to read data from
+     * @param partialFile The file to write into
+     * @param append      Whether to continue an existing partial file
+     * @param maxSize     The maximum number of bytes the file is allowed to contain
+     * @param listener    A listener notified with the total number of bytes in the file after each write or <code>null</code>
+     * @return The checksum of the complete partial file
+     * @throws IOException If any error occurs while reading or writing
+     */
+    public String write(InputStream stream, Path partialFile, boolean append, long maxSize, @Nullable LongConsumer listener) throws IOException {
+        try (ChecksumWriter writer = ChecksumWriter.open(partialFile, append)) {
+            this.start(partialFile, writer.getWritten());
+            writer.transferFrom(stream, maxSize, written -> {
+                this.setAvailable(written);
+                if (listener != null)
+                    listener.accept(written);
+            });
+            return writer.getChecksum();
+        } catch (Throwable t) {
+            this.fail(t);
+            throw t;
+        }
+    }
+
+    /**
+     * @return A future that completes once data starts being written
+     */
+    public CompletableFuture<Void> getStartFuture() {
+        return startFuture;
+    }
+
+    /**
+     * Opens a stream to the file that blocks while waiting for more data to be downloaded.
+     *
+     * @return A new stream to the file
+     * @throws IOException If the download failed or the file could not be opened
+     */
+    public InputStream openStream() throws IOException {
+        Path partialFile;
+        synchronized (this) {
+            this.await(() -> this.partialFile != null || this.complete);
+            if (this.error != null)
+                throw new IOException("Download failed", this.error);
+            if (this.complete)
+                return Files.newInputStream(this.file);
+            partialFile = this.partialFile;
+        }
+
+        try {
+            return new Reader(FileChannel.open(partialFile, StandardOpenOption.READ));
+        } catch (NoSuchFileException e) {
+            // The partial file was moved into place between the check and opening it
+            synchronized (this) {
+                this.await(() -> this.complete);
+                if (this.error != null)
+                    throw new IOException("Download failed", this.error);
+            }
+            return Files.newInputStream(this.file);
+        }
+    }
+
+    private synchronized long awaitData(long position) throws IOException {
+        this.await(() -> this.available > position || this.complete);
+        if (this.error != null)
+            throw new IOException("Download failed", this.error);
+        return this.available;
+    }
+
+    private void await(Condition condition) throws InterruptedIOException {
+        try {
+            while (!condition.test())
+                this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for download");
+        }
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean test();
+    }
+
+    private class Reader extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+
+        private Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            long available = ProgressiveDownload.this.awaitData(this.position);
+            if (this.position >= available)
+                return -1;
+
+            int read = this.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available - this.position)), this.position);
+            if (read > 0)
+                this.position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            synchronized (ProgressiveDownload.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, ProgressiveDownload.this.available - this.position));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
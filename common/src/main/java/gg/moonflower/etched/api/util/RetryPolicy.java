@@ -0,0 +1,313 @@
+package gg.moonflower.etched.api.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Retries requests to an API with exponential backoff and limits how many requests can be made to it at once. Hosts that keep failing are skipped for a cool-down period so they are not flooded while they are down.
+ *
+ * @author Ocelot
+ */
+public class RetryPolicy {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long COOL_DOWN = TimeUnit.SECONDS.toMillis(30);
+    private static final Map<String, Breaker> BREAKERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Etched Retry Timer").setDaemon(true).build());
+
+    private final String name;
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting;
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * Creates a policy with up to 3 attempts starting at a 500ms delay.
+     *
+     * @param name          The name of the API for logging
+     * @param maxConcurrent The maximum number of requests that can be made at once
+     */
+    public RetryPolicy(String name, int maxConcurrent) {
+        this(name, maxConcurrent, 3, 500, 8000);
+    }
+
+    /**
+     * @param name          The name of the API for logging
+     * @param maxConcurrent The maximum number of requests that can be made at once
+     * @param maxAttempts   The number of times to try a request before giving up
+     * @param baseDelay     The delay before the first retry in milliseconds
+     * @param maxDelay      The longest delay between retries in milliseconds
+     */
+    public RetryPolicy(String name, int maxConcurrent, int maxAttempts, long baseDelay, long maxDelay) {
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent);
+        this.waiting = new ConcurrentLinkedQueue<>();
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host.toLowerCase(Locale.ROOT) : url;
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Checks whether a failed request is worth trying again.
+     *
+     * @param e The reason the request failed
+     * @return Whether the failure is likely to be temporary
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof UnavailableException)
+            return false;
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))
+            return false;
+        if (e instanceof StatusException) {
+            int statusCode = ((StatusException) e).getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+        return true;
+    }
+
+    private long getDelay(int attempt) {
+        long delay = Math.min(this.maxDelay, this.baseDelay << Math.min(attempt - 1, 16));
+        // Jitter stops every waiting jukebox from retrying at the same time
+        return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    }
+
+    /**
+     * Makes a single attempt at a request, keeping track of whether the host is down. The caller must hold a permit.
+     */
+    private <T> T attempt(String url, Request<T> request) throws IOException {
+        String host = getHost(url);
+        Breaker breaker = BREAKERS.computeIfAbsent(host, key -> new Breaker());
+        if (!breaker.allowRequest())
+            throw new UnavailableException(this.name + " (" + host + ") is unavailable, try again later");
+
+        try {
+            T result = request.execute();
+            breaker.onSuccess();
+            return result;
+        } catch (IOException e) {
+            if (!isRetryable(e)) {
+                // The host answered, so it is not down
+                if (e instanceof StatusException) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onAbort();
+                }
+                throw e;
+            }
+
+            if (breaker.onFailure())
+                LOGGER.warn("{} ({}) failed {} times in a row, pausing requests for {}s", this.name, host, FAILURE_THRESHOLD, TimeUnit.MILLISECONDS.toSeconds(COOL_DOWN));
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.onAbort();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a request, retrying it if it fails with a temporary error. Attempts are scheduled on the {@link DownloadScheduler#workers() helper pool} like {@link #executeAsync(String, Request, Executor)}, and the calling thread only waits for the result.
+     *
+     * @param url     The URL being requested
+     * @param request The request to make. This is called again for every attempt
+     * @return The result of the request
+     * @throws IOException If the request failed on every attempt, or the host is currently unavailable
+     * @see #executeAsync(String, Request, Executor)
+     */
+    public <T> T execute(String url, Request<T> request) throws IOException {
+        try {
+            return this.executeAsync(url, request, DownloadScheduler.workers()).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Runs a request on the specified executor, retrying it if it fails with a temporary error. Each retry is submitted to the executor again once its delay has passed, so no thread is held while waiting.
+     *
+     * @param url      The URL being requested
+     * @param request  The request to make. This is called again for every attempt
+     * @param executor The executor to run each attempt on
+     * @return A future for the result of the request
+     */
+    public <T> CompletableFuture<T> executeAsync(String url, Request<T> request, Executor executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> this.run(url, request, executor, future, 0, null));
+        return future;
+    }
+
+    private <T> void run(String url, Request<T> request, Executor executor, CompletableFuture<T> future, int attempt, @Nullable IOException failure) {
+        // Attempts over the limit wait in a queue instead of a thread, and are submitted again once a request finishes
+        if (!this.permits.tryAcquire()) {
+            this.waiting.add(() -> executor.execute(() -> this.run(url, request, executor, future, attempt, failure)));
+            // A request may have finished before the attempt was queued
+            if (this.permits.availablePermits() > 0)
+                this.resumeWaiting();
+            return;
+        }
+
+        try {
+            future.complete(this.attempt(url, request));
+        } catch (IOException e) {
+            if (!isRetryable(e)) {
+                future.completeExceptionally(e);
+                return;
+            }
+            if (failure != null)
+                e.addSuppressed(failure);
+            LOGGER.debug("Attempt {}/{} for {} failed: {}", attempt + 1, this.maxAttempts, url, e.getMessage());
+            if (attempt + 1 >= this.maxAttempts) {
+                future.completeExceptionally(e);
+                return;
+            }
+
+            try {
+                RETRY_TIMER.schedule(() -> executor.execute(() -> this.run(url, request, executor, future, attempt + 1, e)), this.getDelay(attempt + 1), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                future.completeExceptionally(e);
+            }
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            this.permits.release();
+            this.resumeWaiting();
+        }
+    }
+
+    private void resumeWaiting() {
+        Runnable next = this.waiting.poll();
+        if (next == null)
+            return;
+        try {
+            next.run();
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Failed to resume request to " + this.name, e);
+        }
+    }
+
+    /**
+     * @return The number of requests waiting for a free slot
+     */
+    public int getQueued() {
+        return this.waiting.size();
+    }
+
+    /**
+     * @param url The URL to check
+     * @return Whether requests to the host of that URL are currently being skipped
+     */
+    public static boolean isUnavailable(String url) {
+        Breaker breaker = BREAKERS.get(getHost(url));
+        return breaker != null && breaker.isOpen();
+    }
+
+    /**
+     * A single network request.
+     *
+     * @param <T> The type of result
+     * @author Ocelot
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+
+        T execute() throws IOException;
+    }
+
+    /**
+     * Thrown when a server responds with an unexpected status code.
+     *
+     * @author Ocelot
+     */
+    public static class StatusException extends IOException {
+
+        private final int statusCode;
+
+        public StatusException(int statusCode, String reasonPhrase) {
+            super(statusCode + " " + reasonPhrase);
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * @return The status code the server responded with
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    private static class UnavailableException extends IOException {
+
+        private UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Breaker {
+
+        private int failures;
+        private long openUntil;
+        private boolean trial;
+
+        synchronized boolean allowRequest() {
+            if (this.failures < FAILURE_THRESHOLD)
+                return true;
+            // Once the cool-down is over, let a single request through to see if the host is back
+            if (System.currentTimeMillis() < this.openUntil || this.trial)
+                return false;
+            this.trial = true;
+            return true;
+        }
+
+        synchronized void onSuccess() {
+            this.failures = 0;
+            this.trial = false;
+        }
+
+        synchronized void onAbort() {
+            this.trial = false;
+        }
+
+        synchronized boolean onFailure() {
+            this.failures++;
+            this.trial = false;
+            if (this.failures >= FAILURE_THRESHOLD) {
+                this.openUntil = System.currentTimeMillis() + COOL_DOWN;
+                return this.failures == FAILURE_THRESHOLD;
+            }
+            return false;
+        }
+
+        synchronized boolean isOpen() {
+            return this.failures >= FAILURE_THRESHOLD && System.currentTimeMillis() < this.openUntil;
+        }
+    }
+}
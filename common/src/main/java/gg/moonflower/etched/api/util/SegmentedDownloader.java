@@ -0,0 +1,236 @@
+package gg.moonflower.etched.api.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Downloads a large file as several concurrent byte ranges written directly to their offsets in the destination.
+ *
+ * @author Ocelot
+ */
+public class SegmentedDownloader {
+
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final URL url;
+    private final Map<String, String> headers;
+    private final Proxy proxy;
+    private final InputStream firstSegment;
+    private final long length;
+    private final String validator;
+    private final DownloadProgressListener listener;
+    private final Executor executor;
+    private final Supplier<DownloadScheduler.Priority> priority;
+    private final BandwidthLimiter.WaitTime waitTime;
+    private final AtomicLong downloaded;
+    private final AtomicBoolean failed;
+    private final Set<HttpGet> requests;
+    private long[] segmentProgress;
+    private long segmentSize;
+
+    /**
+     * @param url          The URL to download from
+     * @param headers      The headers to send with each range request
+     * @param proxy        The proxy to connect through
+     * @param firstSegment The body of the response that was already opened. It is used for the first segment
+     * @param length       The total length of the file
+     * @param validator    The <code>ETag</code> or <code>Last-Modified</code> value the ranges must match or <code>null</code>
+     * @param listener     The listener for download progress
+     * @param executor     The executor to run additional range requests on
+     * @param priority     The current priority of the download for sharing bandwidth
+     * @param waitTime     The time to add any waiting for bandwidth to or <code>null</code>
+     */
+    public SegmentedDownloader(URL url, Map<String, String> headers, Proxy proxy, InputStream firstSegment, long length, @Nullable String validator, @Nullable DownloadProgressListener listener, Executor executor, Supplier<DownloadScheduler.Priority> priority, @Nullable BandwidthLimiter.WaitTime waitTime) {
+        this.url = url;
+        this.headers = headers;
+        this.proxy = proxy;
+        this.firstSegment = firstSegment;
+        this.length = length;
+        this.validator = validator;
+        this.listener = listener;
+        this.executor = executor;
+        this.priority = priority;
+        this.waitTime = waitTime;
+        this.downloaded = new AtomicLong();
+        this.failed = new AtomicBoolean();
+        this.requests = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Checks whether the specified response can be split into multiple range requests.
+     *
+     * @param response The initial response for the full file
+     * @param length   The length of the file
+     * @return Whether the server supports ranges and the file is large enough to benefit from them
+     */
+    public static boolean canSegment(HttpResponse response, long length) {
+        if (response.getStatusLine().getStatusCode() != 200 || length < MIN_SEGMENT_SIZE * 2)
+            return false;
+        Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+        return acceptRanges != null && acceptRanges.getValue().contains("bytes");
+    }
+
+    /**
+     * Downloads the entire file into the specified location, blocking until all segments are complete.
+     *
+     * @param file        The file to write to
+     * @param progressive The download to notify as contiguous data becomes available or <code>null</code>
+     * @throws IOException If any segment fails to download
+     */
+    public void download(Path file, @Nullable ProgressiveDownload progressive) throws IOException {
+        int segments = (int) Math.min(MAX_SEGMENTS, (this.length + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE);
+        this.segmentSize = (this.length + segments - 1) / segments;
+        this.segmentProgress = new long[segments];
+
+        if (this.listener != null)
+            this.listener.progressStartDownload(this.length / 1024.0F / 1024.0F);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (progressive != null)
+                progressive.start(file, 0);
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>(segments - 1);
+            for (int i = 1; i < segments; i++) {
+                int segment = i;
+                long start = i * this.segmentSize;
+                long end = Math.min(this.length, start + this.segmentSize) - 1;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        this.downloadRange(channel, segment, start, end, progressive);
+                    } catch (IOException e) {
+                        this.abort();
+                        throw new CompletionException(e);
+                    } catch (RuntimeException e) {
+                        this.abort();
+                        throw e;
+                    }
+                }, this.executor));
+            }
+
+            try {
+                this.copy(this.firstSegment, channel, 0, 0, this.segmentSize, progressive);
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                this.abort();
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException("Failed to download segment", cause);
+            } catch (Throwable t) {
+                this.abort();
+                throw t;
+            } finally {
+                // No range may still be writing once the channel closes, since the file can be reopened for a retry right after
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+            }
+        } catch (Throwable t) {
+            if (progressive != null)
+                progressive.fail(t);
+            throw t;
+        }
+    }
+
+    private void downloadRange(FileChannel channel, int segment, long start, long end, @Nullable ProgressiveDownload progressive) throws IOException {
+        HttpGet get = new HttpGet(this.url.toString());
+        this.headers.forEach(get::addHeader);
+        get.addHeader("Range", "bytes=" + start + "-" + end);
+        if (this.validator != null)
+            get.addHeader("If-Range", this.validator);
+
+        this.requests.add(get);
+        if (this.failed.get())
+            get.abort();
+        try (CloseableHttpResponse response = EtchedHttpClient.execute(get, this.proxy)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            Header contentRange = response.getFirstHeader("Content-Range");
+            if (statusCode != 206 || contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + start + "-"))
+                throw new IOException("Server did not honour range " + start + "-" + end + " (" + statusCode + ")");
+
+            try (InputStream stream = new BandwidthLimitedInputStream(response.getEntity().getContent(), this.priority, this.waitTime)) {
+                this.copy(stream, channel, segment, start, end - start + 1, progressive);
+            }
+        } finally {
+            this.requests.remove(get);
+        }
+    }
+
+    /**
+     * Stops all segments and closes their connections.
+     */
+    public void abort() {
+        this.failed.set(true);
+        this.requests.forEach(HttpGet::abort);
+    }
+
+    /**
+     * @return The number of bytes downloaded across all segments
+     */
+    public long getDownloaded() {
+        return this.downloaded.get();
+    }
+
+    private void copy(InputStream stream, FileChannel channel, int segment, long position, long count, @Nullable ProgressiveDownload progressive) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = count;
+        while (remaining > 0) {
+            if (this.failed.get())
+                throw new IOException("Download was aborted");
+
+            int read = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1)
+                throw new IOException("Unexpected end of segment at " + (position + count - remaining));
+
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+            long offset = position + count - remaining;
+            while (data.hasRemaining())
+                offset += channel.write(data, offset);
+            remaining -= read;
+
+            long total = this.downloaded.addAndGet(read);
+            if (this.listener != null) {
+                synchronized (this.listener) {
+                    this.listener.progressStage((float) total / (float) this.length);
+                }
+            }
+            if (progressive != null)
+                progressive.setAvailable(this.updateContiguous(segment, read));
+        }
+    }
+
+    /**
+     * Records progress for a segment and calculates how many bytes from the start of the file have no gaps.
+     */
+    private synchronized long updateContiguous(int segment, int read) {
+        this.segmentProgress[segment] += read;
+        long contiguous = 0;
+        for (int i = 0; i < this.segmentProgress.length; i++) {
+            contiguous += this.segmentProgress[i];
+            if (this.segmentProgress[i] < Math.min(this.segmentSize, this.length - i * this.segmentSize))
+                break;
+        }
+        return contiguous;
+    }
+}
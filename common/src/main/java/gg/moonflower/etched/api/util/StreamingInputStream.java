@@ -17,35 +17,100 @@ import java.util.function.IntFunction;
  */
 public class StreamingInputStream extends InputStream {
 
+    private static final int DEFAULT_PREFETCH = 3;
+    private static final double SMOOTHING = 0.3;
+
     private final URL[] urls;
     private final List<CompletableFuture<InputStream>> queue;
     private final IntFunction<CompletableFuture<InputStream>> source;
+    private final int minPrefetch;
+    private final int maxPrefetch;
     private int index;
     private int position;
+    private volatile int prefetchDepth;
+    private double downloadNanos;
+    private double playbackNanos;
+    private long segmentStart;
 
     public StreamingInputStream(URL[] urls, IntFunction<CompletableFuture<InputStream>> source) {
+        this(urls, source, DEFAULT_PREFETCH, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * @param urls        The URLs of each segment
+     * @param source      The function to open each segment
+     * @param minPrefetch The minimum number of segments to keep downloading ahead of playback
+     * @param maxPrefetch The maximum number of segments to keep downloading ahead of playback
+     */
+    public StreamingInputStream(URL[] urls, IntFunction<CompletableFuture<InputStream>> source, int minPrefetch, int maxPrefetch) {
         this.urls = urls;
         this.queue = new ArrayList<>(urls.length);
         this.source = source;
+        this.minPrefetch = Math.max(1, minPrefetch);
+        this.maxPrefetch = Math.max(this.minPrefetch, maxPrefetch);
         this.index = 0;
         this.position = 0;
+        this.prefetchDepth = Math.max(this.minPrefetch, Math.min(this.maxPrefetch, DEFAULT_PREFETCH));
+        this.segmentStart = System.nanoTime();
         this.queueBuffers();
     }
 
     private void queueBuffers() {
-        while (this.index < this.position + 3 && this.index < this.urls.length) {
-            this.queue.add(this.source.apply(this.index));
+        while (this.index < this.position + this.prefetchDepth && this.index < this.urls.length) {
+            long start = System.nanoTime();
+            this.queue.add(this.source.apply(this.index).whenComplete((stream, e) -> {
+                if (e == null)
+                    this.recordDownload(System.nanoTime() - start);
+            }));
             this.index++;
         }
     }
 
     private void incrementPosition() {
+        long now = System.nanoTime();
+        this.recordPlayback(now - this.segmentStart);
+        this.segmentStart = now;
         this.position++;
         this.queueBuffers();
     }
 
+    private synchronized void recordDownload(long nanos) {
+        this.downloadNanos = this.downloadNanos == 0 ? nanos : this.downloadNanos + SMOOTHING * (nanos - this.downloadNanos);
+        this.updatePrefetchDepth();
+    }
+
+    private synchronized void recordPlayback(long nanos) {
+        this.playbackNanos = this.playbackNanos == 0 ? nanos : this.playbackNanos + SMOOTHING * (nanos - this.playbackNanos);
+        this.updatePrefetchDepth();
+    }
+
+    /**
+     * Keeps enough segments in flight to cover the time it takes to download one, plus one spare to absorb jitter.
+     */
+    private void updatePrefetchDepth() {
+        if (this.downloadNanos == 0 || this.playbackNanos == 0)
+            return;
+        int depth = (int) Math.ceil(this.downloadNanos / this.playbackNanos) + 1;
+        this.prefetchDepth = Math.max(this.minPrefetch, Math.min(this.maxPrefetch, depth));
+    }
+
+    /**
+     * @return The number of segments currently kept downloading ahead of playback
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
     private InputStream getCurrentStream() {
-        return this.queue.get(this.position).join();
+        CompletableFuture<InputStream> future = this.queue.get(this.position);
+        if (future.isDone())
+            return future.join();
+
+        // Time spent waiting on the network is not playback time
+        long start = System.nanoTime();
+        InputStream stream = future.join();
+        this.segmentStart += System.nanoTime() - start;
+        return stream;
     }
 
     @Override
@@ -0,0 +1,132 @@
+package gg.moonflower.etched.api.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aborts transfers that stop making progress. Socket timeouts only catch connections that go completely silent, so a server that trickles a few bytes at a time could otherwise hold a download slot forever.
+ *
+ * @author Ocelot
+ */
+public final class TransferWatchdog {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(20);
+    private static final long MIN_PROGRESS = 1024;
+    private static final long CHECK_INTERVAL = 5;
+
+    private static final Map<Watched, Progress> TRANSFERS = new ConcurrentHashMap<>();
+    private static final AtomicLong STALLED = new AtomicLong();
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Etched Transfer Watchdog").setDaemon(true).build());
+
+    static {
+        EXECUTOR.scheduleWithFixedDelay(TransferWatchdog::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private TransferWatchdog() {
+    }
+
+    /**
+     * Starts watching the specified transfer for progress.
+     *
+     * @param transfer The transfer to watch
+     */
+    public static void watch(Watched transfer) {
+        TRANSFERS.put(transfer, new Progress(transfer.getTransferred(), transfer.getWaitTime(), System.nanoTime()));
+    }
+
+    /**
+     * Stops watching the specified transfer once it has finished.
+     *
+     * @param transfer The transfer to stop watching
+     */
+    public static void unwatch(Watched transfer) {
+        TRANSFERS.remove(transfer);
+    }
+
+    private static void check() {
+        long now = System.nanoTime();
+        TRANSFERS.forEach((transfer, progress) -> {
+            long transferred = transfer.getTransferred();
+            long waitTime = transfer.getWaitTime();
+            if (transferred - progress.transferred >= MIN_PROGRESS) {
+                progress.transferred = transferred;
+                progress.waitTime = waitTime;
+                progress.time = now;
+                return;
+            }
+
+            // Time spent waiting for the bandwidth limit is not the server's fault
+            long idle = now - progress.time - (waitTime - progress.waitTime);
+            if (idle >= STALL_TIMEOUT && TRANSFERS.remove(transfer, progress)) {
+                STALLED.incrementAndGet();
+                LOGGER.warn("Aborting {} after it made no progress for {}s", transfer, TimeUnit.NANOSECONDS.toSeconds(STALL_TIMEOUT));
+                try {
+                    transfer.stall();
+                } catch (Throwable t) {
+                    LOGGER.error("Failed to abort stalled transfer", t);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The number of transfers currently being watched
+     */
+    public static int getWatched() {
+        return TRANSFERS.size();
+    }
+
+    /**
+     * @return The total number of transfers that have been aborted for making no progress
+     */
+    public static long getStalledCount() {
+        return STALLED.get();
+    }
+
+    /**
+     * A transfer that can be aborted and retried if it stops making progress.
+     *
+     * @author Ocelot
+     */
+    public interface Watched {
+
+        /**
+         * @return The total number of bytes transferred so far
+         */
+        long getTransferred();
+
+        /**
+         * @return The total number of nanoseconds the transfer has spent waiting for the {@link BandwidthLimiter}
+         */
+        default long getWaitTime() {
+            return 0;
+        }
+
+        /**
+         * Aborts the transfer because it stopped making progress. It should be retried if possible.
+         */
+        void stall();
+    }
+
+    private static class Progress {
+
+        private long transferred;
+        private long waitTime;
+        private long time;
+
+        private Progress(long transferred, long waitTime, long time) {
+            this.transferred = transferred;
+            this.waitTime = waitTime;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package gg.moonflower.etched.api.util;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reduces URLs that point to the same resource to a single form so they can share downloads and cache entries.
+ *
+ * @author Ocelot
+ */
+public final class UrlNormalizer {
+
+    private UrlNormalizer() {
+    }
+
+    private static String removeTrackingParameters(String query) {
+        StringBuilder builder = new StringBuilder();
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty() || parameter.startsWith("utm_"))
+                continue;
+            if (builder.length() > 0)
+                builder.append('&');
+            builder.append(parameter);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Normalizes the scheme, host, port, path and fragment of the specified URL and removes <code>utm_</code> tracking parameters. URLs that cannot be parsed are only trimmed.
+     *
+     * @param url The URL to normalize
+     * @return The normalized URL
+     */
+    public static String normalize(String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null)
+                return trimmed;
+
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443))
+                port = -1;
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+
+            StringBuilder builder = new StringBuilder(scheme).append("://");
+            if (uri.getRawUserInfo() != null)
+                builder.append(uri.getRawUserInfo()).append('@');
+            builder.append(uri.getHost().toLowerCase(Locale.ROOT));
+            if (port != -1)
+                builder.append(':').append(port);
+            builder.append(path);
+            String query = uri.getRawQuery() != null ? removeTrackingParameters(uri.getRawQuery()) : "";
+            if (!query.isEmpty())
+                builder.append('?').append(query);
+            return builder.toString();
+        } catch (URISyntaxException e) {
+            return trimmed;
+        }
+    }
+
+    /**
+     * Normalizes the specified URL and removes its query and any trailing slash. This is for sites where the path alone identifies the page and the query only holds sharing and tracking information.
+     *
+     * @param url The URL to normalize
+     * @return The normalized URL without a query
+     */
+    public static String toPermalink(String url) {
+        return toPermalink(url, new String[0]);
+    }
+
+    /**
+     * Normalizes the specified URL and removes any trailing slash and every query parameter except the specified ones. This is for sites where the path identifies the page, but a few parameters are needed to open it, like access tokens for private pages. The kept parameters are sorted so their order does not matter.
+     *
+     * @param url        The URL to normalize
+     * @param parameters The names of the query parameters to keep
+     * @return The normalized URL with only the kept parameters in its query
+     */
+    public static String toPermalink(String url, String... parameters) {
+        String normalized = normalize(url);
+        List<String> kept = new ArrayList<>();
+        int query = normalized.indexOf('?');
+        if (query != -1) {
+            List<String> names = Arrays.asList(parameters);
+            for (String parameter : normalized.substring(query + 1).split("&")) {
+                int split = parameter.indexOf('=');
+                if (names.contains(split == -1 ? parameter : parameter.substring(0, split)))
+                    kept.add(parameter);
+            }
+            Collections.sort(kept);
+            normalized = normalized.substring(0, query);
+        }
+        int start = normalized.indexOf("://");
+        int path = start == -1 ? -1 : normalized.indexOf('/', start + 3);
+        // The slash of the root path is kept
+        while (path != -1 && normalized.length() > path + 1 && normalized.endsWith("/"))
+            normalized = normalized.substring(0, normalized.length() - 1);
+        return kept.isEmpty() ? normalized : normalized + "?" + String.join("&", kept);
+    }
+}
@@ -1,15 +1,22 @@
 package gg.moonflower.etched.client.sound;
 
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import gg.moonflower.etched.api.sound.download.SoundSourceManager;
 import gg.moonflower.etched.api.sound.source.AudioSource;
+import gg.moonflower.etched.api.util.CachePolicy;
+import gg.moonflower.etched.api.util.ChecksumWriter;
+import gg.moonflower.etched.api.util.DownloadGroup;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
 import gg.moonflower.etched.core.Etched;
 import gg.moonflower.pollen.api.event.events.lifecycle.TickEvents;
 import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.resources.sounds.SoundInstance;
+import net.minecraft.util.GsonHelper;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
@@ -22,11 +29,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 /**
  * @author Ocelot
@@ -36,16 +48,20 @@ public final class SoundCache {
     private static final Logger LOGGER = LogManager.getLogger();
     private static final Gson GSON = new Gson();
     private static final Path CACHE_FOLDER = Minecraft.getInstance().gameDirectory.toPath().resolve(Etched.MOD_ID + "-sounds");
-    private static final ReentrantLock DOWNLOAD_LOCK = new ReentrantLock();
     private static final ReentrantLock METADATA_LOCK = new ReentrantLock();
-    private static final ReentrantLock IO_LOCK = new ReentrantLock();
+    // Each file only needs to be exclusive with writers of the same file, so independent downloads can write at the same time
+    private static final Striped<Lock> IO_LOCKS = Striped.lock(64);
 
     private static final Path CACHE_METADATA_LOCATION = CACHE_FOLDER.resolve("cache.json");
     private static final int METADATA_WRITE_TIME = 5000;
     private static volatile JsonObject CACHE_METADATA = new JsonObject();
     private static volatile long nextWriteTime = Long.MAX_VALUE;
 
-    private static final Map<String, CompletableFuture<AudioSource>> DOWNLOADING = new HashMap<>();
+    private static final Map<String, Download> DOWNLOADING = new ConcurrentHashMap<>();
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final AtomicLong COALESCED_REQUESTS = new AtomicLong();
+    private static final Set<String> REVALIDATING = ConcurrentHashMap.newKeySet();
+    private static final Set<Path> VERIFIED = ConcurrentHashMap.newKeySet();
     private static Map<String, Path> files = new ConcurrentHashMap<>();
 
     static {
@@ -57,7 +73,7 @@ public final class SoundCache {
                 files = null;
             }
 
-            theFiles.keySet().forEach(CACHE_METADATA::remove);
+            theFiles.values().forEach(file -> CACHE_METADATA.remove(DigestUtils.md5Hex(file.getFileName().toString())));
 
             List<Path> toBeDeleted = new ArrayList<>(theFiles.values());
             theFiles.clear();
@@ -65,6 +81,7 @@ public final class SoundCache {
             for (Path filename : toBeDeleted) {
                 try {
                     Files.deleteIfExists(filename);
+                    Files.deleteIfExists(getPartialFile(filename));
                 } catch (Exception ignored) {
                 }
             }
@@ -112,77 +129,365 @@ public final class SoundCache {
      * @return An input stream to the locally downloaded file
      */
     public static CompletableFuture<AudioSource> getAudioStream(String url, @Nullable DownloadProgressListener listener, AudioSource.AudioFileType type) {
-        if (DOWNLOADING.containsKey(url)) {
-            CompletableFuture<AudioSource> future = DOWNLOADING.get(url);
-            if (!future.isDone())
-                return future;
+        return getAudioStream(url, listener, type, null);
+    }
+
+    /**
+     * Downloads an audio stream from the specified URL and stores it in a local cache.
+     *
+     * @param url   The url to download the sound from
+     * @param sound The sound to prioritize the download by the position of or <code>null</code> to always download at full priority
+     * @return An input stream to the locally downloaded file
+     */
+    public static CompletableFuture<AudioSource> getAudioStream(String url, @Nullable DownloadProgressListener listener, AudioSource.AudioFileType type, @Nullable SoundInstance sound) {
+        String key = SoundSourceManager.canonicalize(url);
+        Download created = new Download();
+        Download download = DOWNLOADING.compute(key, (k, existing) -> existing != null && !existing.group.isCancelled() ? existing : created);
+        REQUESTS.incrementAndGet();
+        if (sound != null)
+            SoundDownloadTracker.track(sound, download.group);
+        if (download != created) {
+            COALESCED_REQUESTS.incrementAndGet();
+            return download.future;
         }
 
         try {
-            DOWNLOAD_LOCK.lock();
-
-            CompletableFuture<AudioSource> future = SoundSourceManager.getAudioSource(url, listener, Minecraft.getInstance().getProxy(), type).handle((source, e) -> {
+            SoundSourceManager.getAudioSource(url, listener, Minecraft.getInstance().getProxy(), type, created.group).whenComplete((source, e) -> {
                 if (e != null) {
-                    if (listener != null)
+                    DOWNLOADING.remove(key, created);
+                    if (listener != null && !isCancellation(e))
                         listener.onFail();
-                    throw new CompletionException(e);
+                    created.future.completeExceptionally(e);
+                    return;
                 }
-                return source;
-            }).thenApplyAsync(source -> {
-                DOWNLOADING.remove(url);
-                return source;
-            }, Minecraft.getInstance());
-
-            DOWNLOADING.put(url, future);
-            return future;
+
+                // Keep sharing the source until its data is downloaded so later requests do not start a second download
+                source.getDownloadFuture().whenComplete((__, error) -> DOWNLOADING.remove(key, created));
+                created.future.complete(source);
+            });
+            return created.future;
         } catch (Exception e) {
+            DOWNLOADING.remove(key, created);
             if (listener != null)
                 listener.onFail();
             throw new CompletionException("Failed to load audio into cache", e);
-        } finally {
-            DOWNLOAD_LOCK.unlock();
         }
     }
 
+    /**
+     * Revalidates a stale file in the background. Nothing is started if the file is already being revalidated, so several sounds playing the same file only make one request.
+     *
+     * @param key          The key of the file
+     * @param revalidation The task to bring the file up to date
+     * @param executor     The executor to run the task on
+     */
+    public static void revalidate(String key, Runnable revalidation, Executor executor) {
+        if (!REVALIDATING.add(key))
+            return;
+        CompletableFuture.runAsync(revalidation, executor).whenComplete((__, e) -> REVALIDATING.remove(key));
+    }
+
+    /**
+     * @return The number of audio requests made since the game started
+     */
+    public static long getRequestCount() {
+        return REQUESTS.get();
+    }
+
+    /**
+     * @return The number of audio requests that shared a download that was already in progress
+     */
+    public static long getCoalescedRequestCount() {
+        return COALESCED_REQUESTS.get();
+    }
+
+    /**
+     * @return The fraction of audio requests that shared a download that was already in progress
+     */
+    public static double getCoalescingHitRate() {
+        long requests = REQUESTS.get();
+        return requests == 0 ? 0 : (double) COALESCED_REQUESTS.get() / (double) requests;
+    }
+
+    /**
+     * Checks whether the specified error was caused by a download being cancelled because its sound stopped.
+     *
+     * @param e The error to check
+     * @return Whether the error is a cancellation
+     */
+    public static boolean isCancellation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+            if (cause instanceof CancellationException)
+                return true;
+        return false;
+    }
+
     public static boolean isValid(Path soundFile, String url) {
-        String key = DigestUtils.md5Hex(url);
+        CacheEntry entry = getEntry(soundFile, url);
+        return entry != null && !entry.isExpired();
+    }
+
+    /**
+     * Retrieves the metadata for a completely downloaded file in the cache.
+     *
+     * @param soundFile The file that was downloaded
+     * @param url       The url the file was downloaded from
+     * @return The cache entry or <code>null</code> if the file is not in the cache
+     */
+    @Nullable
+    public static CacheEntry getEntry(Path soundFile, String url) {
         if (!Files.exists(soundFile))
-            return false;
+            return null;
 
-        if (CACHE_METADATA.has(key) && CACHE_METADATA.get(key).isJsonPrimitive() && CACHE_METADATA.get(key).getAsJsonPrimitive().isNumber()) {
-            long now = System.currentTimeMillis() / 1000L;
-            long expirationDate = CACHE_METADATA.get(key).getAsLong();
-            return expirationDate - now > 0;
+        JsonElement entry = CACHE_METADATA.get(DigestUtils.md5Hex(url));
+        if (entry == null)
+            return null;
+
+        if (entry.isJsonPrimitive() && entry.getAsJsonPrimitive().isNumber())
+            return new CacheEntry(entry.getAsLong(), new CachePolicy(0, 0, true, null, null), null);
+        if (entry.isJsonObject()) {
+            JsonObject json = entry.getAsJsonObject();
+            if (GsonHelper.getAsBoolean(json, "partial", false))
+                return null;
+
+            String etag = json.has("etag") ? GsonHelper.getAsString(json, "etag") : null;
+            String lastModified = json.has("lastModified") ? GsonHelper.getAsString(json, "lastModified") : null;
+            CachePolicy policy = new CachePolicy(GsonHelper.getAsLong(json, "maxAge", 0), GsonHelper.getAsLong(json, "staleWhileRevalidate", 0), true, etag, lastModified);
+            String checksum = json.has("crc32") ? GsonHelper.getAsString(json, "crc32") : null;
+            return new CacheEntry(GsonHelper.getAsLong(json, "expiration", 0), policy, checksum);
         }
 
-        return false;
+        return null;
     }
 
-    public static void updateCache(Path soundFile, String url, long timeout, TimeUnit unit, InputStream stream) {
+    /**
+     * Retrieves the previously interrupted download for the specified file if it can be resumed.
+     *
+     * @param soundFile The file that was being downloaded
+     * @param url       The url the file was downloaded from
+     * @return The partial download or <code>null</code> if the file must be downloaded from the beginning
+     */
+    @Nullable
+    public static PartialDownload getPartialDownload(Path soundFile, String url) {
+        Path partialFile = getPartialFile(soundFile);
+        JsonElement entry = CACHE_METADATA.get(DigestUtils.md5Hex(url));
+        if (entry == null || !entry.isJsonObject() || !GsonHelper.getAsBoolean(entry.getAsJsonObject(), "partial", false))
+            return null;
+
         try {
-            try {
-                IO_LOCK.lock();
-                if (!Files.exists(CACHE_FOLDER))
-                    Files.createDirectory(CACHE_FOLDER);
-                Files.copy(stream, soundFile, StandardCopyOption.REPLACE_EXISTING);
-            } finally {
-                IO_LOCK.unlock();
+            long length = Files.exists(partialFile) ? Files.size(partialFile) : 0;
+            if (length <= 0)
+                return null;
+
+            JsonObject json = entry.getAsJsonObject();
+            String etag = json.has("etag") ? GsonHelper.getAsString(json, "etag") : null;
+            String lastModified = json.has("lastModified") ? GsonHelper.getAsString(json, "lastModified") : null;
+            PartialDownload partial = new PartialDownload(length, etag, lastModified);
+            return partial.getValidator() != null ? partial : null;
+        } catch (Exception e) {
+            LOGGER.error("Failed to read partial download: " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes any partially downloaded data for the specified file.
+     *
+     * @param soundFile The file that was being downloaded
+     * @param url       The url the file was downloaded from
+     */
+    public static void discardPartialDownload(Path soundFile, String url) {
+        try {
+            METADATA_LOCK.lock();
+            JsonElement entry = CACHE_METADATA.get(DigestUtils.md5Hex(url));
+            if (entry != null && entry.isJsonObject() && GsonHelper.getAsBoolean(entry.getAsJsonObject(), "partial", false)) {
+                CACHE_METADATA.remove(DigestUtils.md5Hex(url));
+                nextWriteTime = System.currentTimeMillis() + METADATA_WRITE_TIME;
             }
+        } finally {
+            METADATA_LOCK.unlock();
+        }
+
+        Lock lock = IO_LOCKS.get(soundFile.toAbsolutePath().toString());
+        try {
+            lock.lock();
+            Files.deleteIfExists(getPartialFile(soundFile));
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete partial download: " + url, e);
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    public static void updateCache(Path soundFile, String url, long timeout, TimeUnit unit, InputStream stream) {
+        updateCache(soundFile, url, new CachePolicy(unit.toSeconds(timeout), 0, true, null, null), stream, false, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Writes the specified stream into the cache. Data is written to a partial file first, so an interrupted download can be resumed later if the server provided a validator.
+     *
+     * @param soundFile The file to write to
+     * @param url       The url the file was downloaded from
+     * @param policy    The caching rules of the response
+     * @param stream    The stream to read data from
+     * @param append    Whether the stream continues a previous partial download
+     * @param maxSize   The maximum number of bytes the file is allowed to contain
+     * @param listener  A listener notified with the total number of bytes in the file after each write or <code>null</code>
+     */
+    public static void updateCache(Path soundFile, String url, CachePolicy policy, InputStream stream, boolean append, long maxSize, @Nullable LongConsumer listener) {
+        try {
+            updateCache(soundFile, url, policy, partialFile -> {
+                try (ChecksumWriter writer = ChecksumWriter.open(partialFile, append)) {
+                    writer.transferFrom(stream, maxSize, listener);
+                    return writer.getChecksum();
+                }
+            }, true);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Writes data into the cache using the specified writer. Data is written to a partial file first and only moved into place once the writer completes.
+     *
+     * @param soundFile The file to write to
+     * @param url       The url the file was downloaded from
+     * @param policy    The caching rules of the response
+     * @param writer    The function writing data into the partial file
+     * @param resumable Whether the partial file is written sequentially and can be resumed from its length
+     */
+    public static void updateCache(Path soundFile, String url, CachePolicy policy, CacheWriter writer, boolean resumable) {
+        Path partialFile = getPartialFile(soundFile);
+        try {
+            String checksum;
+            Lock lock = IO_LOCKS.get(soundFile.toAbsolutePath().toString());
             try {
-                METADATA_LOCK.lock();
-                CACHE_METADATA.addProperty(DigestUtils.md5Hex(url), System.currentTimeMillis() / 1000L + unit.toSeconds(timeout));
-                nextWriteTime = System.currentTimeMillis() + METADATA_WRITE_TIME;
+                lock.lock();
+                Files.createDirectories(CACHE_FOLDER);
+                checksum = writer.write(partialFile);
+                Files.move(partialFile, soundFile, StandardCopyOption.REPLACE_EXISTING);
+                // The checksum was calculated from the data as it was written, so the new file does not need to be read back
+                if (checksum != null)
+                    VERIFIED.add(soundFile.toAbsolutePath());
+                else
+                    VERIFIED.remove(soundFile.toAbsolutePath());
             } finally {
-                METADATA_LOCK.unlock();
+                lock.unlock();
             }
+
+            putMetadata(url, createEntry(policy, false, checksum));
         } catch (Exception e) {
             LOGGER.error("Failed to write sound: " + url, e);
+            if (resumable && policy.hasRangeValidator()) {
+                putMetadata(url, createEntry(policy, true, null));
+            } else {
+                discardPartialDownload(soundFile, url);
+            }
+        }
+    }
+
+    /**
+     * Extends the lifetime of a cached file after the server confirmed it has not changed.
+     *
+     * @param url    The url the file was downloaded from
+     * @param policy The caching rules of the revalidation response
+     */
+    public static void refreshCache(String url, CachePolicy policy) {
+        // The contents have not changed, so the checksum from the original download still applies
+        JsonElement previous = CACHE_METADATA.get(DigestUtils.md5Hex(url));
+        String checksum = previous != null && previous.isJsonObject() && previous.getAsJsonObject().has("crc32") ? GsonHelper.getAsString(previous.getAsJsonObject(), "crc32") : null;
+        putMetadata(url, createEntry(policy, false, checksum));
+    }
+
+    /**
+     * Checks whether a cached file still matches the checksum calculated while it was downloaded. Each file is only read back once per session. Files that do not match are removed from the cache so they are downloaded again.
+     *
+     * @param soundFile The file that was downloaded
+     * @param url       The url the file was downloaded from
+     * @return Whether the file is intact. Files without a stored checksum are assumed to be intact
+     */
+    public static boolean verify(Path soundFile, String url) {
+        CacheEntry entry = getEntry(soundFile, url);
+        if (entry == null)
+            return false;
+        if (entry.getChecksum() == null || VERIFIED.contains(soundFile.toAbsolutePath()))
+            return true;
+
+        try {
+            if (entry.getChecksum().equals(ChecksumWriter.checksum(soundFile))) {
+                VERIFIED.add(soundFile.toAbsolutePath());
+                return true;
+            }
+            LOGGER.warn("Cached sound does not match its checksum: " + url);
+        } catch (IOException e) {
+            LOGGER.error("Failed to verify sound: " + url, e);
+        }
+
+        discard(soundFile, url);
+        return false;
+    }
+
+    /**
+     * @param soundFile The file that was downloaded
+     * @return Whether the file has already been checked by {@link #verify(Path, String)} this session
+     */
+    public static boolean isVerified(Path soundFile) {
+        return VERIFIED.contains(soundFile.toAbsolutePath());
+    }
+
+    private static void discard(Path soundFile, String url) {
+        try {
+            METADATA_LOCK.lock();
+            CACHE_METADATA.remove(DigestUtils.md5Hex(url));
+            nextWriteTime = System.currentTimeMillis() + METADATA_WRITE_TIME;
         } finally {
-            IOUtils.closeQuietly(stream);
+            METADATA_LOCK.unlock();
+        }
+
+        Lock lock = IO_LOCKS.get(soundFile.toAbsolutePath().toString());
+        try {
+            lock.lock();
+            Files.deleteIfExists(soundFile);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete sound: " + url, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static JsonObject createEntry(CachePolicy policy, boolean partial, @Nullable String checksum) {
+        JsonObject entry = new JsonObject();
+        if (partial) {
+            entry.addProperty("partial", true);
+        } else {
+            entry.addProperty("expiration", policy.getExpiration(System.currentTimeMillis() / 1000L));
+            entry.addProperty("maxAge", policy.getMaxAge());
+            if (policy.getStaleWhileRevalidate() > 0)
+                entry.addProperty("staleWhileRevalidate", policy.getStaleWhileRevalidate());
+        }
+        if (policy.getEtag() != null)
+            entry.addProperty("etag", policy.getEtag());
+        if (policy.getLastModified() != null)
+            entry.addProperty("lastModified", policy.getLastModified());
+        if (checksum != null)
+            entry.addProperty("crc32", checksum);
+        return entry;
+    }
+
+    private static void putMetadata(String url, JsonObject entry) {
+        try {
+            METADATA_LOCK.lock();
+            CACHE_METADATA.add(DigestUtils.md5Hex(url), entry);
+            nextWriteTime = System.currentTimeMillis() + METADATA_WRITE_TIME;
+        } finally {
+            METADATA_LOCK.unlock();
         }
     }
 
+    private static Path getPartialFile(Path soundFile) {
+        return soundFile.resolveSibling(soundFile.getFileName() + ".part");
+    }
+
     public static Path resolveFilePath(String hash, boolean temporary) throws IOException {
         if (temporary)
             return getTemporaryFile(hash);
@@ -191,6 +496,21 @@ public final class SoundCache {
         return CACHE_FOLDER.resolve(hash);
     }
 
+    /**
+     * Looks up where a file would be stored without creating anything, so the cache can be checked before deciding to download.
+     *
+     * @param hash      The hash the file is stored under
+     * @param temporary Whether the file is stored in the temporary cache
+     * @return The location of the file or <code>null</code> if a temporary file was never created for the hash this session
+     */
+    @Nullable
+    public static Path findFilePath(String hash, boolean temporary) {
+        if (!temporary)
+            return CACHE_FOLDER.resolve(hash);
+        Map<String, Path> theFiles = files;
+        return theFiles != null ? theFiles.get(hash) : null;
+    }
+
     private static Path getTemporaryFile(String hash) throws IOException {
         if (files == null)
             throw new IllegalStateException("Shutdown in progress");
@@ -198,4 +518,135 @@ public final class SoundCache {
             files.put(hash, Files.createTempFile(hash, null));
         return files.get(hash);
     }
+
+    /**
+     * A source being resolved and downloaded that all requests for the same URL share.
+     */
+    private static class Download {
+
+        private final CompletableFuture<AudioSource> future;
+        private final DownloadGroup group;
+
+        private Download() {
+            this.future = new CompletableFuture<>();
+            this.group = new DownloadGroup();
+        }
+    }
+
+    /**
+     * Writes downloaded data into a file in the cache.
+     */
+    @FunctionalInterface
+    public interface CacheWriter {
+
+        /**
+         * Writes all data into the specified file.
+         *
+         * @param file The file to write into
+         * @return The checksum of the file calculated while writing or <code>null</code> if it could not be calculated
+         * @throws IOException If any error occurs while downloading or writing
+         */
+        @Nullable
+        String write(Path file) throws IOException;
+    }
+
+    /**
+     * Information about a completely downloaded file in the cache.
+     */
+    public static class CacheEntry {
+
+        private final long expiration;
+        private final CachePolicy policy;
+        private final String checksum;
+
+        private CacheEntry(long expiration, CachePolicy policy, @Nullable String checksum) {
+            this.expiration = expiration;
+            this.policy = policy;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return Whether the file needs to be revalidated before use
+         */
+        public boolean isExpired() {
+            return this.expiration - System.currentTimeMillis() / 1000L <= 0;
+        }
+
+        /**
+         * @return Whether the file has expired, but can still be used while it is revalidated in the background
+         */
+        public boolean isStale() {
+            long now = System.currentTimeMillis() / 1000L;
+            return this.expiration - now <= 0 && this.expiration + this.policy.getStaleWhileRevalidate() - now > 0;
+        }
+
+        /**
+         * @return The time in seconds the file expires at
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * @return The caching rules the file was stored with
+         */
+        public CachePolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return The CRC32 of the file calculated while it was downloaded or <code>null</code> if unknown
+         */
+        @Nullable
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Information about a download that was interrupted before it finished.
+     */
+    public static class PartialDownload {
+
+        private final long length;
+        private final String etag;
+        private final String lastModified;
+
+        private PartialDownload(long length, @Nullable String etag, @Nullable String lastModified) {
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The number of bytes already downloaded
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The entity tag of the data, which may be weak, or <code>null</code> if unknown
+         */
+        @Nullable
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return The last time the data was modified or <code>null</code> if unknown
+         */
+        @Nullable
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The validator to send with <code>If-Range</code> or <code>null</code> if only a weak tag is known
+         */
+        @Nullable
+        public String getValidator() {
+            return this.etag != null && !CachePolicy.isWeak(this.etag) ? this.etag : this.lastModified;
+        }
+    }
 }
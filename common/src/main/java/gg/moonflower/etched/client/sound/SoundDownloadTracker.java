@@ -0,0 +1,115 @@
+package gg.moonflower.etched.client.sound;
+
+import gg.moonflower.etched.api.util.DownloadGroup;
+import gg.moonflower.etched.api.util.DownloadScheduler;
+import gg.moonflower.etched.core.Etched;
+import gg.moonflower.pollen.api.event.events.lifecycle.TickEvents;
+import net.minecraft.client.Camera;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.resources.sounds.SoundInstance;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Ties the downloads for each playing sound to how far away that sound is from the listener.
+ *
+ * @author Ocelot
+ */
+@ApiStatus.Internal
+public final class SoundDownloadTracker {
+
+    private static final int UPDATE_INTERVAL = 10;
+    private static final double PREFETCH_RANGE = 2.0;
+    private static final Map<SoundInstance, DownloadGroup> SOUNDS = new HashMap<>();
+    private static int ticks;
+
+    static {
+        TickEvents.CLIENT_POST.register(() -> {
+            if (++ticks >= UPDATE_INTERVAL) {
+                ticks = 0;
+                update();
+            }
+        });
+    }
+
+    private SoundDownloadTracker() {
+    }
+
+    /**
+     * Starts prioritizing the downloads in the specified group by the position of a sound.
+     *
+     * @param sound The sound the downloads are for
+     * @param group The downloads for the sound
+     */
+    public static synchronized void track(SoundInstance sound, DownloadGroup group) {
+        SOUNDS.put(sound, group);
+    }
+
+    /**
+     * Cancels the downloads for the specified sound if no other playing sound needs them. Transfers that are nearly complete are allowed to finish.
+     *
+     * @param sound The sound that stopped
+     */
+    public static synchronized void stop(SoundInstance sound) {
+        DownloadGroup group = SOUNDS.remove(sound);
+        if (group != null && !SOUNDS.containsValue(group))
+            group.cancel(Etched.CLIENT_CONFIG.finishDownloadThreshold.get().floatValue());
+    }
+
+    /**
+     * Cancels the downloads for every tracked sound. The sound engine stops all sounds at once without removing them one by one, for example when leaving a world.
+     */
+    public static synchronized void stopAll() {
+        float finishThreshold = Etched.CLIENT_CONFIG.finishDownloadThreshold.get().floatValue();
+        new HashSet<>(SOUNDS.values()).forEach(group -> group.cancel(finishThreshold));
+        SOUNDS.clear();
+    }
+
+    private static synchronized void update() {
+        if (SOUNDS.isEmpty())
+            return;
+
+        Camera camera = Minecraft.getInstance().gameRenderer.getMainCamera();
+        if (!camera.isInitialized())
+            return;
+
+        // Several sounds can share one download, so the closest one decides the priority
+        Vec3 listener = camera.getPosition();
+        Map<DownloadGroup, DownloadScheduler.Priority> priorities = new HashMap<>();
+        SOUNDS.forEach((sound, group) -> {
+            DownloadScheduler.Priority priority = getPriority(sound, listener);
+            DownloadScheduler.Priority current = priorities.get(group);
+            if (priority != null && (current == null || priority.ordinal() < current.ordinal())) {
+                priorities.put(group, priority);
+            } else if (!priorities.containsKey(group)) {
+                priorities.put(group, null);
+            }
+        });
+        priorities.forEach((group, priority) -> {
+            if (priority != null) {
+                group.setPriority(priority);
+            } else {
+                group.park();
+            }
+        });
+    }
+
+    @Nullable
+    private static DownloadScheduler.Priority getPriority(SoundInstance sound, Vec3 listener) {
+        if (sound.isRelative() || sound.getAttenuation() == SoundInstance.Attenuation.NONE || sound.getSound() == null)
+            return DownloadScheduler.Priority.AUDIBLE;
+
+        double range = Math.max(sound.getVolume(), 1.0F) * sound.getSound().getAttenuationDistance();
+        double distance = listener.distanceToSqr(sound.getX(), sound.getY(), sound.getZ());
+        if (distance <= range * range)
+            return DownloadScheduler.Priority.AUDIBLE;
+        if (distance <= range * range * PREFETCH_RANGE * PREFETCH_RANGE)
+            return DownloadScheduler.Priority.PREFETCH;
+        return null;
+    }
+}
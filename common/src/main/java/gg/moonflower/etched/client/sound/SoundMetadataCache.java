@@ -0,0 +1,376 @@
+package gg.moonflower.etched.client.sound;
+
+import com.google.gson.*;
+import gg.moonflower.etched.api.sound.download.SoundSourceManager;
+import gg.moonflower.etched.common.sound.download.ResolveCache;
+import gg.moonflower.etched.core.Etched;
+import gg.moonflower.pollen.api.event.events.lifecycle.TickEvents;
+import net.minecraft.Util;
+import net.minecraft.client.Minecraft;
+import net.minecraft.util.GsonHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers what external sources resolved URLs into between sessions, so known discs can start playing without asking the source API again.
+ *
+ * @author Ocelot
+ */
+@ApiStatus.Internal
+public final class SoundMetadataCache {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new Gson();
+    private static final Path LOCATION = Minecraft.getInstance().gameDirectory.toPath().resolve(Etched.MOD_ID + "-metadata.json");
+    private static final int WRITE_TIME = 5000;
+    private static final long SIGNATURE_MARGIN = TimeUnit.MINUTES.toSeconds(5);
+
+    private static final Object LOCK = new Object();
+    private static final JsonObject METADATA;
+    private static volatile long nextWriteTime = Long.MAX_VALUE;
+
+    static {
+        JsonObject metadata = new JsonObject();
+        if (Files.exists(LOCATION)) {
+            try (Reader reader = Files.newBufferedReader(LOCATION, StandardCharsets.UTF_8)) {
+                metadata = new JsonParser().parse(reader).getAsJsonObject();
+                prune(metadata);
+            } catch (Exception e) {
+                LOGGER.error("Failed to load sound metadata", e);
+            }
+        }
+        METADATA = metadata;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (nextWriteTime != Long.MAX_VALUE)
+                write();
+        }));
+        TickEvents.CLIENT_POST.register(() -> {
+            if (nextWriteTime == Long.MAX_VALUE)
+                return;
+
+            if (System.currentTimeMillis() - nextWriteTime > 0) {
+                nextWriteTime = Long.MAX_VALUE;
+                Util.ioPool().execute(SoundMetadataCache::write);
+            }
+        });
+    }
+
+    private SoundMetadataCache() {
+    }
+
+    private static void prune(JsonObject metadata) {
+        long now = System.currentTimeMillis() / 1000L;
+        Iterator<Map.Entry<String, JsonElement>> entries = metadata.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonElement> entry = entries.next();
+            if (!entry.getValue().isJsonObject()) {
+                entries.remove();
+                continue;
+            }
+
+            Iterator<Map.Entry<String, JsonElement>> fields = entry.getValue().getAsJsonObject().entrySet().iterator();
+            while (fields.hasNext()) {
+                JsonElement field = fields.next().getValue();
+                if (!field.isJsonObject() || GsonHelper.getAsLong(field.getAsJsonObject(), "expiration", 0) - now <= 0)
+                    fields.remove();
+            }
+            if (entry.getValue().getAsJsonObject().size() == 0)
+                entries.remove();
+        }
+    }
+
+    private static void write() {
+        String json;
+        synchronized (LOCK) {
+            json = GSON.toJson(METADATA);
+        }
+
+        try {
+            Path temp = LOCATION.resolveSibling(LOCATION.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(json);
+            }
+            Files.move(temp, LOCATION, StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            LOGGER.error("Failed to write sound metadata", e);
+        }
+    }
+
+    @Nullable
+    private static JsonElement get(String url, Field field) {
+        synchronized (LOCK) {
+            JsonElement entry = METADATA.get(SoundSourceManager.canonicalize(url));
+            if (entry == null || !entry.isJsonObject())
+                return null;
+
+            JsonElement value = entry.getAsJsonObject().get(field.getName());
+            if (value == null || !value.isJsonObject())
+                return null;
+
+            JsonObject json = value.getAsJsonObject();
+            if (GsonHelper.getAsLong(json, "expiration", 0) - System.currentTimeMillis() / 1000L <= 0)
+                return null;
+            return json.get("value");
+        }
+    }
+
+    private static void put(String url, Field field, JsonElement value) {
+        put(url, field, value, System.currentTimeMillis() / 1000L + field.getTimeToLive());
+    }
+
+    private static void put(String url, Field field, JsonElement value, long expiration) {
+        JsonObject json = new JsonObject();
+        json.addProperty("expiration", expiration);
+        json.add("value", value);
+
+        synchronized (LOCK) {
+            String key = SoundSourceManager.canonicalize(url);
+            JsonElement entry = METADATA.get(key);
+            if (entry == null || !entry.isJsonObject()) {
+                entry = new JsonObject();
+                METADATA.add(key, entry);
+            }
+            entry.getAsJsonObject().add(field.getName(), json);
+        }
+        nextWriteTime = System.currentTimeMillis() + WRITE_TIME;
+    }
+
+    /**
+     * Forgets a resolved value, for example after the URLs it pointed to stopped working.
+     *
+     * @param url   The URL that was resolved
+     * @param field The value to forget
+     */
+    public static void invalidate(String url, Field field) {
+        synchronized (LOCK) {
+            JsonElement entry = METADATA.get(SoundSourceManager.canonicalize(url));
+            if (entry == null || !entry.isJsonObject() || entry.getAsJsonObject().remove(field.getName()) == null)
+                return;
+        }
+        nextWriteTime = System.currentTimeMillis() + WRITE_TIME;
+    }
+
+    /**
+     * Retrieves the audio URLs a source resolved the specified URL into.
+     *
+     * @param url The URL to look up
+     * @return The audio URLs or <code>null</code> if they are not known or have expired
+     */
+    @Nullable
+    public static URL[] getAudioUrls(String url) {
+        JsonElement value = get(url, Field.AUDIO_URLS);
+        if (value == null || !value.isJsonArray())
+            return null;
+
+        try {
+            JsonArray array = value.getAsJsonArray();
+            URL[] urls = new URL[array.size()];
+            for (int i = 0; i < urls.length; i++)
+                urls[i] = new URL(array.get(i).getAsString());
+            return urls;
+        } catch (MalformedURLException | RuntimeException e) {
+            LOGGER.warn("Discarding invalid audio URLs for " + url, e);
+            invalidate(url, Field.AUDIO_URLS);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the audio URLs a source resolved the specified URL into. The number of files is kept for longer than the URLs themselves.
+     *
+     * @param url  The URL that was resolved
+     * @param urls The audio URLs
+     */
+    public static void putAudioUrls(String url, URL[] urls) {
+        put(url, Field.AUDIO_FILES, new JsonPrimitive(urls.length));
+
+        JsonArray array = new JsonArray();
+        long expiration = System.currentTimeMillis() / 1000L + Field.AUDIO_URLS.getTimeToLive();
+        for (URL audioUrl : urls) {
+            array.add(audioUrl.toString());
+            expiration = Math.min(expiration, getSignatureExpiration(audioUrl));
+        }
+        put(url, Field.AUDIO_URLS, array, expiration);
+    }
+
+    /**
+     * Retrieves the number of audio files a source resolved the specified URL into, so the cache can be checked for all of them before resolving the URL again.
+     *
+     * @param url The URL to look up
+     * @return The number of files or <code>0</code> if it is not known or has expired
+     */
+    public static int getAudioFileCount(String url) {
+        JsonElement value = get(url, Field.AUDIO_FILES);
+        return value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber() ? value.getAsInt() : 0;
+    }
+
+    /**
+     * Reads when a signed URL stops working from the expiry most CDNs put in the query. Bandcamp puts it at the start of the token instead.
+     *
+     * @param url The URL to check
+     * @return The time in seconds the URL expires at with some margin for the download itself or {@link Long#MAX_VALUE} if it is not signed
+     */
+    private static long getSignatureExpiration(URL url) {
+        String query = url.getQuery();
+        if (query == null)
+            return Long.MAX_VALUE;
+
+        long expiration = Long.MAX_VALUE;
+        for (String parameter : query.split("&")) {
+            int split = parameter.indexOf('=');
+            if (split == -1)
+                continue;
+
+            String name = parameter.substring(0, split);
+            String value = parameter.substring(split + 1);
+            if ("token".equals(name) && value.indexOf('_') != -1)
+                value = value.substring(0, value.indexOf('_'));
+            else if (!"Expires".equalsIgnoreCase(name))
+                continue;
+
+            try {
+                expiration = Math.min(expiration, Long.parseLong(value) - SIGNATURE_MARGIN);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return expiration;
+    }
+
+    /**
+     * Checks whether the album cover for the specified URL is known, including URLs that are known to have no cover.
+     *
+     * @param url The URL to look up
+     * @return Whether {@link #getAlbumCover(String)} can answer for the URL
+     */
+    public static boolean hasAlbumCover(String url) {
+        return get(url, Field.ALBUM_COVER) != null;
+    }
+
+    /**
+     * Retrieves the album cover a source resolved for the specified URL. Use {@link #hasAlbumCover(String)} to tell a URL without a cover apart from one that is not known.
+     *
+     * @param url The URL to look up
+     * @return The album cover URL or <code>null</code> if the URL has no cover or it is not known
+     */
+    @Nullable
+    public static String getAlbumCover(String url) {
+        JsonElement value = get(url, Field.ALBUM_COVER);
+        return value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isString() ? value.getAsString() : null;
+    }
+
+    /**
+     * Stores the album cover a source resolved for the specified URL.
+     *
+     * @param url   The URL that was resolved
+     * @param cover The album cover URL or nothing if the URL has no cover
+     */
+    public static void putAlbumCover(String url, Optional<String> cover) {
+        // Gson leaves out null values when writing, so a missing cover is stored as false to survive a restart
+        put(url, Field.ALBUM_COVER, cover.map(JsonPrimitive::new).orElse(new JsonPrimitive(false)));
+    }
+
+    /**
+     * Retrieves the document a source resolved the specified URL into.
+     *
+     * @param url The URL to look up
+     * @return The resolved document or <code>null</code> if it is not known or has expired
+     */
+    @Nullable
+    public static JsonObject getResolved(String url) {
+        JsonElement value = get(url, Field.RESOLVED);
+        return value != null && value.isJsonObject() ? value.getAsJsonObject() : null;
+    }
+
+    /**
+     * Stores the document a source resolved the specified URL into.
+     *
+     * @param url      The URL that was resolved
+     * @param resolved The resolved document
+     */
+    public static void putResolved(String url, JsonObject resolved) {
+        put(url, Field.RESOLVED, resolved);
+    }
+
+    /**
+     * @return A store that keeps resolved documents in this cache
+     */
+    public static ResolveCache.Store resolveStore() {
+        return new ResolveCache.Store() {
+            @Nullable
+            @Override
+            public JsonObject get(String url) {
+                return getResolved(url);
+            }
+
+            @Override
+            public void put(String url, JsonObject resolved) {
+                putResolved(url, resolved);
+            }
+
+            @Override
+            public void invalidate(String url) {
+                SoundMetadataCache.invalidate(url, Field.RESOLVED);
+            }
+        };
+    }
+
+    /**
+     * The values that can be stored for a URL. Each one is kept for a different amount of time depending on how quickly sources change them.
+     */
+    public enum Field {
+        /**
+         * Audio URLs are often signed and stop working after a while. URLs that say when they expire are kept until shortly before then instead.
+         */
+        AUDIO_URLS("audioUrls", TimeUnit.MINUTES.toSeconds(20)),
+        /**
+         * The number of files a URL resolves into only changes if the track is uploaded again.
+         */
+        AUDIO_FILES("audioFiles", TimeUnit.DAYS.toSeconds(30)),
+        /**
+         * Album artwork rarely changes.
+         */
+        ALBUM_COVER("albumCover", TimeUnit.DAYS.toSeconds(7)),
+        /**
+         * Resolved documents only hold stable information about the track, like its title and where to request audio from.
+         */
+        RESOLVED("resolved", TimeUnit.DAYS.toSeconds(7));
+
+        private final String name;
+        private final long timeToLive;
+
+        Field(String name, long timeToLive) {
+            this.name = name;
+            this.timeToLive = timeToLive;
+        }
+
+        /**
+         * @return The name the field is stored under
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of seconds the field is kept for
+         */
+        public long getTimeToLive() {
+            return timeToLive;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import gg.moonflower.etched.api.record.PlayableRecord;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.sound.download.SoundDownloadSource;
 import gg.moonflower.etched.api.sound.download.SoundSourceManager;
+import gg.moonflower.etched.api.util.EtchedHttpClient;
 import gg.moonflower.etched.common.item.*;
 import gg.moonflower.etched.common.network.EtchedMessages;
 import gg.moonflower.etched.common.network.play.ClientboundInvalidEtchUrlPacket;
@@ -162,7 +163,7 @@ public class EtchingMenu extends AbstractContainerMenu {
     }
 
     private static void checkStatus(String url) throws IOException {
-        HttpURLConnection httpURLConnection = (HttpURLConnection) new URL(url).openConnection(Proxy.NO_PROXY);
+        HttpURLConnection httpURLConnection = (HttpURLConnection) EtchedHttpClient.openConnection(new URL(url), Proxy.NO_PROXY);
         httpURLConnection.setRequestMethod("HEAD");
         httpURLConnection.setInstanceFollowRedirects(true);
         Map<String, String> map = SoundDownloadSource.getDownloadHeaders();
@@ -1,13 +1,14 @@
 package gg.moonflower.etched.common.sound.download;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.sound.download.SoundDownloadSource;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.EtchedHttpClient;
 import gg.moonflower.etched.api.util.ProgressTrackingInputStream;
+import gg.moonflower.etched.api.util.RetryPolicy;
+import gg.moonflower.etched.api.util.UrlNormalizer;
 import gg.moonflower.etched.core.Etched;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.TextColor;
@@ -15,47 +16,63 @@ import net.minecraft.network.chat.TextComponent;
 import net.minecraft.network.chat.TranslatableComponent;
 import net.minecraft.server.packs.resources.ResourceManager;
 import net.minecraft.util.GsonHelper;
-import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ocelot
  */
 public class BandcampSource implements SoundDownloadSource {
 
-    private static final Pattern DATA_PATTERN = Pattern.compile("data-tralbum=\"([^\"]+)\"");
+    private static final long MAX_PAGE_SCAN = 4 * 1024 * 1024;
+    private static final JsonFieldFilter DATA_FILTER = JsonFieldFilter.create()
+            .field("artist")
+            .object("current", current -> current.field("type", "title", "art_id"))
+            .object("trackinfo", track -> track.field("file", "title", "title_link", "artist"));
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy("Bandcamp", 4);
     private static final Component BRAND = new TranslatableComponent("sound_source." + Etched.MOD_ID + ".bandcamp").withStyle(style -> style.withColor(TextColor.fromRgb(0x477987)));
 
-    private final Map<String, Boolean> validCache = new WeakHashMap<>();
+    private final ResolveCache resolveCache = new ResolveCache(10, TimeUnit.MINUTES, 64);
 
-    private InputStream get(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
-        HttpURLConnection httpURLConnection;
+    private void startRequest(@Nullable DownloadProgressListener progressListener) {
         if (progressListener != null)
             progressListener.progressStartRequest(new TranslatableComponent("sound_source." + Etched.MOD_ID + ".requesting", this.getApiName()));
+    }
 
+    private InputStream open(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
         try {
-            URL uRL = new URL(url);
-            httpURLConnection = (HttpURLConnection) uRL.openConnection(proxy);
-            httpURLConnection.setInstanceFollowRedirects(true);
-            Map<String, String> map = SoundDownloadSource.getDownloadHeaders();
-
-            for (Map.Entry<String, String> entry : map.entrySet())
-                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
-
-            long size = httpURLConnection.getContentLengthLong();
-            int response = httpURLConnection.getResponseCode();
-            if (response != 200)
-                throw new IOException(response + " " + httpURLConnection.getResponseMessage());
+            HttpGet get = new HttpGet(url);
+            SoundDownloadSource.getDownloadHeaders().forEach(get::addHeader);
+
+            CloseableHttpResponse response = EtchedHttpClient.execute(get, proxy);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                response.close();
+                throw new RetryPolicy.StatusException(statusCode, response.getStatusLine().getReasonPhrase());
+            }
 
-            return size != -1 && progressListener != null ? new ProgressTrackingInputStream(httpURLConnection.getInputStream(), size, progressListener) : httpURLConnection.getInputStream();
+            // Only the start of the page is needed, so stop the transfer when the stream is closed instead of downloading the rest
+            HttpEntity entity = response.getEntity();
+            InputStream content = new FilterInputStream(entity.getContent()) {
+                @Override
+                public void close() throws IOException {
+                    get.abort();
+                    response.close();
+                }
+            };
+            long size = entity.getContentLength();
+            return size != -1 && progressListener != null ? new ProgressTrackingInputStream(content, size, progressListener) : content;
         } catch (IOException e) {
             throw e;
         } catch (Throwable e) {
@@ -63,22 +80,46 @@ public class BandcampSource implements SoundDownloadSource {
         }
     }
 
-    private <T> T resolve(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, SourceRequest<T> function) throws IOException, JsonParseException {
-        try (InputStream stream = get(url, progressListener, proxy)) {
-            Matcher dataMatcher = DATA_PATTERN.matcher(IOUtils.toString(stream, StandardCharsets.UTF_8));
-            String raw = dataMatcher.find() ? dataMatcher.group(1) : null;
-            if (raw == null)
-                throw new IOException("Failed to find properties");
-
-            JsonObject json = new JsonParser().parse(raw.replaceAll("&quot;", "\"")).getAsJsonObject();
-            String type = GsonHelper.getAsString(GsonHelper.getAsJsonObject(json, "current"), "type");
-            if (!"track".equals(type) && !"album".equals(type))
-                throw new IOException("URL is not a track or album");
-
-            return function.process(json);
+    private JsonObject load(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
+        try (JsonReader reader = new JsonReader(new HtmlAttributeReader(new BufferedReader(new InputStreamReader(this.open(url, progressListener, proxy), StandardCharsets.UTF_8)), "data-tralbum", MAX_PAGE_SCAN))) {
+            JsonElement resolved = DATA_FILTER.read(reader);
+            if (!resolved.isJsonObject())
+                throw new JsonSyntaxException("Expected album data to be an object");
+            return resolved.getAsJsonObject();
+        } catch (EOFException e) {
+            // The page loaded, but it is not an album or track, so there is no point in trying again
+            throw new JsonSyntaxException("Failed to find properties", e);
         }
     }
 
+    private static JsonObject validate(JsonObject json) throws IOException {
+        String type = GsonHelper.getAsString(GsonHelper.getAsJsonObject(json, "current"), "type");
+        if (!"track".equals(type) && !"album".equals(type))
+            throw new IOException("URL is not a track or album");
+        return json;
+    }
+
+    private <T> T resolve(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, SourceRequest<T> function) throws IOException, JsonParseException {
+        JsonObject json = this.resolveCache.get(url, () -> {
+            this.startRequest(progressListener);
+            return RETRY_POLICY.execute(url, () -> this.load(url, progressListener, proxy));
+        });
+        return function.process(validate(json));
+    }
+
+    private <T> CompletableFuture<T> resolveAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor, SourceRequest<T> function) {
+        return this.resolveCache.getAsync(url, () -> {
+            this.startRequest(progressListener);
+            return RETRY_POLICY.executeAsync(url, () -> this.load(url, progressListener, proxy), executor);
+        }).thenApply(json -> {
+            try {
+                return function.process(validate(json));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
     @Nullable
     private String getTrackUrl(JsonObject fileJson) {
         if (fileJson.has("mp3-128"))
@@ -86,73 +127,111 @@ public class BandcampSource implements SoundDownloadSource {
         return null;
     }
 
+    private List<URL> readUrls(@Nullable DownloadProgressListener progressListener, JsonObject json) throws IOException {
+        if (progressListener != null)
+            progressListener.progressStartRequest(RESOLVING_TRACKS);
+        JsonArray trackInfoArray = GsonHelper.getAsJsonArray(json, "trackinfo");
+        List<URL> trackUrls = new ArrayList<>(trackInfoArray.size());
+        for (int i = 0; i < trackInfoArray.size(); i++) {
+            JsonObject trackInfoJson = GsonHelper.convertToJsonObject(trackInfoArray.get(i), "trackinfo[" + i + "]");
+            JsonObject fileJson = GsonHelper.getAsJsonObject(trackInfoJson, "file");
+            String trackUrl = this.getTrackUrl(fileJson);
+            if (trackUrl != null)
+                trackUrls.add(new URL(trackUrl));
+        }
+        return trackUrls;
+    }
+
+    private static TrackData[] readTracks(String url, JsonObject json) {
+        int urlEnd = url.indexOf(".com/");
+        if (urlEnd == -1)
+            urlEnd = url.length() - 4;
+        JsonObject current = GsonHelper.getAsJsonObject(json, "current");
+        String artist = GsonHelper.getAsString(json, "artist");
+        String title = GsonHelper.getAsString(current, "title");
+        String type = GsonHelper.getAsString(current, "type");
+        if ("album".equals(type)) {
+            JsonArray trackInfoJson = GsonHelper.getAsJsonArray(json, "trackinfo");
+            List<TrackData> tracks = new ArrayList<>(trackInfoJson.size());
+            tracks.add(new TrackData(url, artist, new TextComponent(title)));
+            for (int i = 0; i < trackInfoJson.size(); i++) {
+                JsonObject trackJson = GsonHelper.convertToJsonObject(trackInfoJson.get(i), "trackinfo[" + i + "]");
+                String trackUrl = url.substring(0, urlEnd + 4) + GsonHelper.getAsString(trackJson, "title_link");
+                String trackArtist = trackJson.has("artist") && !trackJson.get("artist").isJsonNull() ? GsonHelper.getAsString(trackJson, "artist", artist) : artist;
+                String trackTitle = GsonHelper.getAsString(trackJson, "title");
+
+                tracks.add(new TrackData(trackUrl, trackArtist, new TextComponent(trackTitle)));
+            }
+            return tracks.toArray(new TrackData[0]);
+        }
+        return new TrackData[]{new TrackData(url, artist, new TextComponent(title))};
+    }
+
+    private static Optional<String> readAlbumCover(JsonObject json) {
+        JsonObject current = GsonHelper.getAsJsonObject(json, "current");
+        if (!current.has("art_id") || current.get("art_id").isJsonNull())
+            return Optional.empty();
+        return Optional.of("https://f4.bcbits.com/img/a" + current.get("art_id") + "_1.jpg");
+    }
+
     @Override
     public List<URL> resolveUrl(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException {
-        return resolve(url, progressListener, proxy, json -> {
-            if (progressListener != null)
-                progressListener.progressStartRequest(RESOLVING_TRACKS);
-            JsonArray trackInfoArray = GsonHelper.getAsJsonArray(json, "trackinfo");
-            List<URL> trackUrls = new ArrayList<>(trackInfoArray.size());
-            for (int i = 0; i < trackInfoArray.size(); i++) {
-                JsonObject trackInfoJson = GsonHelper.convertToJsonObject(trackInfoArray.get(i), "trackinfo[" + i + "]");
-                JsonObject fileJson = GsonHelper.getAsJsonObject(trackInfoJson, "file");
-                String trackUrl = this.getTrackUrl(fileJson);
-                if (trackUrl != null)
-                    trackUrls.add(new URL(trackUrl));
-            }
-            return trackUrls;
-        });
+        return this.resolve(url, progressListener, proxy, json -> this.readUrls(progressListener, json));
+    }
+
+    @Override
+    public CompletableFuture<List<URL>> resolveUrlAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        return this.resolveAsync(url, progressListener, proxy, executor, json -> this.readUrls(progressListener, json));
     }
 
     @Override
     public TrackData[] resolveTracks(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException, JsonParseException {
-        return this.resolve(url, progressListener, proxy, json -> {
-            int urlEnd = url.indexOf(".com/");
-            if (urlEnd == -1)
-                urlEnd = url.length() - 4;
-            JsonObject current = GsonHelper.getAsJsonObject(json, "current");
-            String artist = GsonHelper.getAsString(json, "artist");
-            String title = GsonHelper.getAsString(current, "title");
-            String type = GsonHelper.getAsString(current, "type");
-            if ("album".equals(type)) {
-                JsonArray trackInfoJson = GsonHelper.getAsJsonArray(json, "trackinfo");
-                List<TrackData> tracks = new ArrayList<>(trackInfoJson.size());
-                tracks.add(new TrackData(url, artist, new TextComponent(title)));
-                for (int i = 0; i < trackInfoJson.size(); i++) {
-                    JsonObject trackJson = GsonHelper.convertToJsonObject(trackInfoJson.get(i), "trackinfo[" + i + "]");
-                    String trackUrl = url.substring(0, urlEnd + 4) + GsonHelper.getAsString(trackJson, "title_link");
-                    String trackArtist = trackJson.has("artist") && !trackJson.get("artist").isJsonNull() ? GsonHelper.getAsString(trackJson, "artist", artist) : artist;
-                    String trackTitle = GsonHelper.getAsString(trackJson, "title");
-
-                    tracks.add(new TrackData(trackUrl, trackArtist, new TextComponent(trackTitle)));
-                }
-                return tracks.toArray(new TrackData[0]);
-            }
-            return new TrackData[]{new TrackData(url, artist, new TextComponent(title))};
-        });
+        return this.resolve(url, progressListener, proxy, json -> readTracks(url, json));
+    }
+
+    @Override
+    public CompletableFuture<TrackData[]> resolveTracksAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        return this.resolveAsync(url, progressListener, proxy, executor, json -> readTracks(url, json));
     }
 
     @Override
     public Optional<String> resolveAlbumCover(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager) throws IOException {
-        return this.resolve(url, progressListener, proxy, json -> {
-            JsonObject current = GsonHelper.getAsJsonObject(json, "current");
-            if (!current.has("art_id") || current.get("art_id").isJsonNull())
-                return Optional.empty();
-            return Optional.of("https://f4.bcbits.com/img/a" + current.get("art_id") + "_1.jpg");
-        });
+        return this.resolve(url, progressListener, proxy, BandcampSource::readAlbumCover);
+    }
+
+    @Override
+    public CompletableFuture<Optional<String>> resolveAlbumCoverAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager, Executor executor) {
+        return this.resolveAsync(url, progressListener, proxy, executor, BandcampSource::readAlbumCover);
+    }
+
+    @Override
+    public void invalidate(String url) {
+        this.resolveCache.invalidate(url);
     }
 
     @Override
     public boolean isValidUrl(String url) {
-        this.validCache.clear();
-        return this.validCache.computeIfAbsent(url, key -> {
-            try {
-                String host = new URI(key).getHost();
-                return host != null && host.endsWith("bandcamp.com");
-            } catch (URISyntaxException e) {
-                return false;
-            }
-        });
+        try {
+            String host = new URI(url).getHost();
+            return host != null && host.endsWith("bandcamp.com");
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Collection<String> getHosts() {
+        return Collections.singleton("bandcamp.com");
+    }
+
+    @Override
+    public String canonicalize(String url) {
+        try {
+            URI uri = new URI(UrlNormalizer.toPermalink(url));
+            return uri.getHost() != null ? "https://" + uri.getHost() + uri.getRawPath() : uri.toString();
+        } catch (URISyntaxException e) {
+            return UrlNormalizer.normalize(url);
+        }
     }
 
     @Override
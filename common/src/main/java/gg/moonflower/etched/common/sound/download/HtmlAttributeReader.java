@@ -0,0 +1,162 @@
+package gg.moonflower.etched.common.sound.download;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Scans an HTML document for the first occurrence of an attribute and reads its value with HTML entities decoded. Nothing after the closing quote of the attribute is read, so the rest of the page never has to be downloaded.
+ *
+ * @author Ocelot
+ */
+public class HtmlAttributeReader extends Reader {
+
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final Reader in;
+    private final char[] marker;
+    private final int[] fallback;
+    private final long maxScan;
+    private boolean found;
+    private boolean finished;
+    private String pending;
+    private int pendingIndex;
+
+    /**
+     * @param in        The HTML to read
+     * @param attribute The name of the attribute to find
+     * @param maxScan   The maximum number of characters to read while looking for the attribute
+     */
+    public HtmlAttributeReader(Reader in, String attribute, long maxScan) {
+        this.in = in;
+        this.marker = (attribute + "=\"").toCharArray();
+        this.fallback = new int[this.marker.length];
+        this.maxScan = maxScan;
+
+        // Knuth-Morris-Pratt table of where to continue matching after a mismatch
+        for (int i = 1, length = 0; i < this.marker.length; ) {
+            if (this.marker[i] == this.marker[length]) {
+                this.fallback[i++] = ++length;
+            } else if (length > 0) {
+                length = this.fallback[length - 1];
+            } else {
+                this.fallback[i++] = 0;
+            }
+        }
+    }
+
+    private void findAttribute() throws IOException {
+        int matched = 0;
+        long scanned = 0;
+        while (matched < this.marker.length) {
+            int c = this.in.read();
+            if (c == -1)
+                throw new EOFException("Could not find attribute " + new String(this.marker, 0, this.marker.length - 2));
+            if (++scanned > this.maxScan)
+                throw new IOException("Attribute " + new String(this.marker, 0, this.marker.length - 2) + " was not found in the first " + this.maxScan + " characters");
+
+            while (matched > 0 && c != this.marker[matched])
+                matched = this.fallback[matched - 1];
+            if (c == this.marker[matched])
+                matched++;
+        }
+        this.found = true;
+    }
+
+    private int readDecoded() throws IOException {
+        if (this.pending != null) {
+            char c = this.pending.charAt(this.pendingIndex++);
+            if (this.pendingIndex >= this.pending.length())
+                this.pending = null;
+            return c;
+        }
+
+        int c = this.in.read();
+        if (c == -1)
+            throw new EOFException("Attribute was not closed");
+        if (c == '"') {
+            this.finished = true;
+            return -1;
+        }
+        if (c != '&')
+            return c;
+
+        StringBuilder entity = new StringBuilder();
+        while (entity.length() < MAX_ENTITY_LENGTH) {
+            int next = this.in.read();
+            if (next == -1)
+                throw new EOFException("Attribute was not closed");
+            if (next == ';')
+                return this.decode(entity.toString());
+            if (next == '"') {
+                // Not an entity after all, so give back what was read before closing
+                this.finished = true;
+                return this.unread("&" + entity);
+            }
+            entity.append((char) next);
+        }
+        return this.unread("&" + entity);
+    }
+
+    private int unread(String text) {
+        if (text.length() > 1) {
+            this.pending = text;
+            this.pendingIndex = 1;
+        }
+        return text.charAt(0);
+    }
+
+    private int decode(String entity) {
+        switch (entity) {
+            case "quot":
+                return '"';
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return '\u00A0';
+        }
+        if (entity.startsWith("#")) {
+            try {
+                int codePoint = entity.startsWith("#x") || entity.startsWith("#X") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+                if (Character.isBmpCodePoint(codePoint))
+                    return codePoint;
+                char[] chars = Character.toChars(codePoint);
+                return this.unread(new String(chars));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return this.unread("&" + entity + ";");
+    }
+
+    @Override
+    public int read(@NotNull char[] cbuf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!this.found)
+            this.findAttribute();
+
+        int read = 0;
+        while (read < len) {
+            if (this.finished && this.pending == null)
+                break;
+            int c = this.readDecoded();
+            if (c == -1)
+                break;
+            cbuf[off + read++] = (char) c;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,95 @@
+package gg.moonflower.etched.common.sound.download;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads only selected fields out of a JSON stream. Everything else is skipped without being parsed into objects, which keeps large API responses cheap when only a few values are needed.
+ *
+ * @author Ocelot
+ */
+public class JsonFieldFilter {
+
+    private final Map<String, JsonFieldFilter> fields;
+
+    private JsonFieldFilter() {
+        this.fields = new HashMap<>();
+    }
+
+    /**
+     * @return A new filter that selects nothing until fields are added
+     */
+    public static JsonFieldFilter create() {
+        return new JsonFieldFilter();
+    }
+
+    /**
+     * Selects the entire value of the specified fields.
+     *
+     * @param names The names of the fields to keep
+     * @return This filter
+     */
+    public JsonFieldFilter field(String... names) {
+        for (String name : names)
+            this.fields.put(name, null);
+        return this;
+    }
+
+    /**
+     * Selects some of the fields of an object, or of every object in an array.
+     *
+     * @param name   The name of the field to keep
+     * @param filter A function to select fields of the value
+     * @return This filter
+     */
+    public JsonFieldFilter object(String name, Consumer<JsonFieldFilter> filter) {
+        JsonFieldFilter child = new JsonFieldFilter();
+        filter.accept(child);
+        this.fields.put(name, child);
+        return this;
+    }
+
+    /**
+     * Reads the next value from the specified reader, keeping only the selected fields.
+     *
+     * @param reader The reader to read from
+     * @return The filtered value
+     * @throws IOException        If an error occurs while reading
+     * @throws JsonParseException If the data is not valid JSON
+     */
+    public JsonElement read(JsonReader reader) throws IOException, JsonParseException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JsonObject object = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (!this.fields.containsKey(name)) {
+                        reader.skipValue();
+                        continue;
+                    }
+
+                    JsonFieldFilter child = this.fields.get(name);
+                    object.add(name, child != null ? child.read(reader) : new JsonParser().parse(reader));
+                }
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JsonArray array = new JsonArray();
+                reader.beginArray();
+                while (reader.hasNext())
+                    array.add(this.read(reader));
+                reader.endArray();
+                return array;
+            }
+            default:
+                return new JsonParser().parse(reader);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package gg.moonflower.etched.common.sound.download;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Caches the document a source resolves a URL into, so the track list, audio URLs and album cover for a URL can all be answered by a single request. Concurrent lookups of the same URL share one request.
+ *
+ * @author Ocelot
+ */
+public class ResolveCache {
+
+    private static volatile Store store;
+
+    private final Cache<String, CompletableFuture<JsonObject>> cache;
+    private final boolean persistent;
+
+    /**
+     * @param expiration The time resolved documents are kept for
+     * @param unit       The unit of the expiration
+     * @param maxSize    The maximum number of documents to keep
+     */
+    public ResolveCache(long expiration, TimeUnit unit, int maxSize) {
+        this(expiration, unit, maxSize, false);
+    }
+
+    /**
+     * @param expiration The time resolved documents are kept in memory for
+     * @param unit       The unit of the expiration
+     * @param maxSize    The maximum number of documents to keep in memory
+     * @param persistent Whether documents are also kept in the {@link Store} between sessions. Only documents without short-lived signed URLs should be persisted
+     */
+    public ResolveCache(long expiration, TimeUnit unit, int maxSize, boolean persistent) {
+        this.cache = CacheBuilder.newBuilder().expireAfterWrite(expiration, unit).maximumSize(maxSize).build();
+        this.persistent = persistent;
+    }
+
+    /**
+     * Sets where persistent caches keep their documents between sessions. Nothing is persisted until a store is set.
+     *
+     * @param store The store to use or <code>null</code> to stop persisting documents
+     */
+    public static void setStore(@Nullable Store store) {
+        ResolveCache.store = store;
+    }
+
+    /**
+     * Retrieves the resolved document for the specified URL, loading it on the calling thread if it is not cached. Failed loads are not cached.
+     *
+     * @param url    The URL to resolve
+     * @param loader The function to fetch the document
+     * @return The resolved document
+     * @throws IOException        If an error occurs while loading the document
+     * @throws JsonParseException If the document could not be parsed
+     */
+    public JsonObject get(String url, Loader loader) throws IOException, JsonParseException {
+        try {
+            return this.getAsync(url, () -> {
+                try {
+                    return CompletableFuture.completedFuture(loader.load());
+                } catch (Throwable t) {
+                    CompletableFuture<JsonObject> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(t);
+                    return failed;
+                }
+            }).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Retrieves the resolved document for the specified URL without blocking, loading it if it is not cached. Failed loads are not cached.
+     *
+     * @param url    The URL to resolve
+     * @param loader The function to start fetching the document
+     * @return A future for the resolved document
+     */
+    public CompletableFuture<JsonObject> getAsync(String url, Supplier<CompletableFuture<JsonObject>> loader) {
+        CompletableFuture<JsonObject> created = new CompletableFuture<>();
+        CompletableFuture<JsonObject> existing = this.cache.asMap().putIfAbsent(url, created);
+        if (existing != null)
+            return existing;
+
+        Store store = this.persistent ? ResolveCache.store : null;
+        if (store != null) {
+            JsonObject stored = store.get(url);
+            if (stored != null) {
+                created.complete(stored);
+                return created;
+            }
+        }
+
+        // The loader runs outside the map so a slow request never holds up lookups of other URLs
+        CompletableFuture<JsonObject> load;
+        try {
+            load = loader.get();
+        } catch (Throwable t) {
+            load = new CompletableFuture<>();
+            load.completeExceptionally(t);
+        }
+        load.whenComplete((json, e) -> {
+            if (e != null) {
+                this.cache.asMap().remove(url, created);
+                created.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                if (store != null)
+                    store.put(url, json);
+                created.complete(json);
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Removes the document for the specified URL so the next lookup fetches it again.
+     *
+     * @param url The URL to forget
+     */
+    public void invalidate(String url) {
+        this.cache.invalidate(url);
+        Store store = this.persistent ? ResolveCache.store : null;
+        if (store != null)
+            store.invalidate(url);
+    }
+
+    /**
+     * Fetches a document for a URL.
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        JsonObject load() throws IOException, JsonParseException;
+    }
+
+    /**
+     * Keeps resolved documents between sessions.
+     */
+    public interface Store {
+
+        /**
+         * @param url The URL that was resolved
+         * @return The stored document or <code>null</code> if it is not known or has expired
+         */
+        @Nullable
+        JsonObject get(String url);
+
+        /**
+         * @param url      The URL that was resolved
+         * @param resolved The document to store
+         */
+        void put(String url, JsonObject resolved);
+
+        /**
+         * @param url The URL to forget
+         */
+        void invalidate(String url);
+    }
+}
@@ -1,19 +1,31 @@
 package gg.moonflower.etched.common.sound.download;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import gg.moonflower.etched.api.sound.download.SoundDownloadSource;
+import gg.moonflower.etched.api.util.DownloadScheduler;
+import gg.moonflower.etched.api.util.EtchedHttpClient;
 import net.minecraft.Util;
-import net.minecraft.util.HttpUtil;
-import org.apache.commons.io.IOUtils;
+import net.minecraft.util.GsonHelper;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.Proxy;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,37 +39,42 @@ public final class SoundCloudIdTracker {
     private static final Pattern PAGE_APP_SCRIPT_PATTERN = Pattern.compile("https://[A-Za-z0-9-.]+/assets/[a-f0-9-]+\\.js");
     private static final Pattern APP_SCRIPT_CLIENT_ID_PATTERN = Pattern.compile(",client_id:\"([a-zA-Z0-9-_]+)\"");
 
+    private static final long REFRESH_AGE = TimeUnit.HOURS.toMillis(12);
+    private static final int MAX_SPARE_SCRIPTS = 3;
+    private static final AtomicBoolean REFRESHING = new AtomicBoolean();
+
     private static volatile String currentId;
-    private static volatile CompletableFuture<?> currentRequest;
+    private static volatile String spareId;
+    private static volatile long timestamp;
+    private static volatile Path storage;
+    private static CompletableFuture<String> lookup;
 
     private SoundCloudIdTracker() {
     }
 
-    private static String getLastMatchWithinLimit(Matcher m) {
-        String lastMatch = null;
+    private static List<String> getMatchesWithinLimit(Matcher m) {
+        List<String> matches = new ArrayList<>();
         for (int i = 0; m.find() && i < 9; i++)
-            lastMatch = m.group();
-        return lastMatch;
+            matches.add(m.group());
+        return matches;
     }
 
-    private static String findScriptUrl(Proxy proxy) throws IOException {
-        HttpURLConnection httpURLConnection;
-
-        try {
-            URL uRL = new URL("https://soundcloud.com");
-            httpURLConnection = (HttpURLConnection) uRL.openConnection(proxy);
-            httpURLConnection.setInstanceFollowRedirects(true);
-            Map<String, String> map = SoundDownloadSource.getDownloadHeaders();
-
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
+    private static String read(String url, Proxy proxy) throws IOException {
+        HttpGet get = new HttpGet(url);
+        SoundDownloadSource.getDownloadHeaders().forEach(get::addHeader);
 
-            if (httpURLConnection.getResponseCode() != 200)
-                throw new IOException(httpURLConnection.getResponseCode() + " " + httpURLConnection.getResponseMessage());
+        try (CloseableHttpResponse response = EtchedHttpClient.execute(get, proxy)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200)
+                throw new IOException(statusCode + " " + response.getStatusLine().getReasonPhrase());
+            return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        }
+    }
 
-            String result = getLastMatchWithinLimit(PAGE_APP_SCRIPT_PATTERN.matcher(IOUtils.toString(httpURLConnection.getInputStream(), StandardCharsets.UTF_8)));
-            if (result == null)
+    private static List<String> findScriptUrls(Proxy proxy) throws IOException {
+        try {
+            List<String> result = getMatchesWithinLimit(PAGE_APP_SCRIPT_PATTERN.matcher(read("https://soundcloud.com", proxy)));
+            if (result.isEmpty())
                 throw new IllegalStateException("Could not find application script from main page.");
 
             return result;
@@ -71,69 +88,196 @@ public final class SoundCloudIdTracker {
     @Nullable
     private static String findIdFromScript(String url, Proxy proxy) {
         try {
-            HttpURLConnection httpURLConnection = (HttpURLConnection) new URL(url).openConnection(proxy);
-            httpURLConnection.setInstanceFollowRedirects(true);
-            Map<String, String> map = SoundDownloadSource.getDownloadHeaders();
-
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-
-            if (httpURLConnection.getResponseCode() != 200)
-                throw new IOException(httpURLConnection.getResponseCode() + " " + httpURLConnection.getResponseMessage());
-
-            Matcher clientIdMatcher = APP_SCRIPT_CLIENT_ID_PATTERN.matcher(IOUtils.toString(httpURLConnection.getInputStream(), StandardCharsets.UTF_8));
+            Matcher clientIdMatcher = APP_SCRIPT_CLIENT_ID_PATTERN.matcher(read(url, proxy));
             return clientIdMatcher.find() ? clientIdMatcher.group(1) : null;
         } catch (Throwable e) {
-            e.printStackTrace();
+            SoundCloudSource.LOGGER.warn("Failed to read sound cloud script " + url, e);
             return null;
         }
     }
 
-    private static synchronized void findIdFromSite(Proxy proxy) {
-        if (currentId != null)
-            return;
-        if (currentRequest == null || currentRequest.isDone()) {
-            currentRequest = CompletableFuture.supplyAsync(() -> {
-                SoundCloudSource.LOGGER.info("Retrieving sound cloud id");
-                try {
-                    String clientId = findIdFromScript(findScriptUrl(proxy), proxy);
-                    if (clientId == null)
-                        throw new IOException("Failed to find client id from soundcloud script");
+    /**
+     * Finds client ids in the application scripts, checking them from last to first.
+     *
+     * @param spare Whether to keep looking for a second id to keep as a spare. Usually only one script contains an id, so only a few more scripts are checked
+     */
+    private static List<String> findIds(Proxy proxy, boolean spare) throws IOException {
+        List<String> scripts = findScriptUrls(proxy);
+        List<String> ids = new ArrayList<>(2);
+        int spareScripts = 0;
+        for (int i = scripts.size() - 1; i >= 0; i--) {
+            String id = findIdFromScript(scripts.get(i), proxy);
+            if (id != null && !ids.contains(id))
+                ids.add(id);
+            if (!ids.isEmpty() && (!spare || ids.size() > 1 || spareScripts++ >= MAX_SPARE_SCRIPTS))
+                break;
+        }
+        if (ids.isEmpty())
+            throw new IOException("Failed to find client id from soundcloud script");
+        return ids;
+    }
+
+    private static void update(List<String> ids) {
+        synchronized (LOCK) {
+            currentId = ids.get(0);
+            spareId = ids.size() > 1 ? ids.get(1) : null;
+            timestamp = System.currentTimeMillis();
+        }
+        save();
+    }
+
+    /**
+     * Starts scraping an id if no scrape is already running. Everything waiting for an id shares the same scrape. It runs on the IO pool rather than as a scheduled download, since callers may be holding every download slot while they wait for it. This stops at the first id, and a spare is only looked for when the id is refreshed in the background.
+     */
+    private static CompletableFuture<String> findIdFromSite(Proxy proxy) {
+        synchronized (LOCK) {
+            if (currentId != null)
+                return CompletableFuture.completedFuture(currentId);
+            if (lookup != null)
+                return lookup;
 
-                    return clientId;
-                } catch (Throwable e) {
+            SoundCloudSource.LOGGER.info("Retrieving sound cloud id");
+            CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    List<String> ids = findIds(proxy, false);
+                    update(ids);
+                    return ids.get(0);
+                } catch (IOException e) {
                     throw new CompletionException(e);
                 }
-            }, HttpUtil.DOWNLOAD_EXECUTOR).thenApplyAsync(clientId -> {
+            }, Util.ioPool());
+            lookup = future;
+            future.whenComplete((id, e) -> {
                 synchronized (LOCK) {
-                    return currentId = clientId;
+                    if (lookup == future)
+                        lookup = null;
                 }
-            }, Util.backgroundExecutor()).exceptionally(e -> null);
+                if (e != null)
+                    SoundCloudSource.LOGGER.error("Failed to retrieve sound cloud id", e);
+            });
+            return future;
         }
-        currentRequest.join();
     }
 
     /**
-     * Invalidates the previously found client id.
+     * Scrapes a new id in the background while the current one can still be used.
      */
-    public static void invalidate() {
+    private static void refresh(Proxy proxy) {
+        if (!REFRESHING.compareAndSet(false, true))
+            return;
+
+        DownloadScheduler.submit(DownloadScheduler.Priority.METADATA, () -> {
+            try {
+                SoundCloudSource.LOGGER.debug("Refreshing sound cloud id");
+                update(findIds(proxy, true));
+            } catch (Throwable e) {
+                SoundCloudSource.LOGGER.warn("Failed to refresh sound cloud id", e);
+            } finally {
+                REFRESHING.set(false);
+            }
+        });
+    }
+
+    private static void save() {
+        Path file = storage;
+        if (file == null)
+            return;
+
+        JsonObject json = new JsonObject();
+        synchronized (LOCK) {
+            if (currentId == null) {
+                // Nothing to use next session, so a rejected id is not loaded again
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    SoundCloudSource.LOGGER.error("Failed to delete sound cloud id", e);
+                }
+                return;
+            }
+            json.addProperty("clientId", currentId);
+            if (spareId != null)
+                json.addProperty("spareId", spareId);
+            json.addProperty("timestamp", timestamp);
+        }
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        } catch (IOException e) {
+            SoundCloudSource.LOGGER.error("Failed to save sound cloud id", e);
+        }
+    }
+
+    /**
+     * Loads the client id found in a previous session and saves any ids found from now on to the specified file. The stored id is used right away and refreshed in the background once it gets old. If there is no stored id, one is scraped in the background so it is ready for the first download.
+     *
+     * @param file  The file to store the id in
+     * @param proxy The proxy to use when finding an id
+     */
+    public static void load(Path file, Proxy proxy) {
+        storage = file;
+        if (!Files.exists(file)) {
+            findIdFromSite(proxy);
+            return;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+            synchronized (LOCK) {
+                if (currentId != null)
+                    return;
+                currentId = GsonHelper.getAsString(json, "clientId");
+                spareId = json.has("spareId") ? GsonHelper.getAsString(json, "spareId") : null;
+                timestamp = GsonHelper.getAsLong(json, "timestamp", 0);
+            }
+        } catch (Exception e) {
+            SoundCloudSource.LOGGER.error("Failed to load sound cloud id", e);
+            findIdFromSite(proxy);
+        }
+    }
+
+    /**
+     * Invalidates a client id that was rejected. The spare id is used in its place if there is one, and a new id is found in the background.
+     *
+     * @param id    The id that was rejected
+     * @param proxy The proxy to use when finding a new id
+     */
+    public static void invalidate(String id, Proxy proxy) {
+        boolean promoted;
         synchronized (LOCK) {
-            currentId = null;
+            // Another request may have already replaced the id
+            if (!id.equals(currentId))
+                return;
+            promoted = spareId != null;
+            currentId = spareId;
+            spareId = null;
+        }
+        save();
+        if (promoted) {
+            SoundCloudSource.LOGGER.info("Switching to spare sound cloud id");
+            refresh(proxy);
+        } else {
+            findIdFromSite(proxy);
         }
     }
 
     /**
-     * Retrieves the client id from sound cloud using the provided proxy.
+     * Retrieves the client id from sound cloud using the provided proxy, waiting for it to be scraped if there is none yet.
      *
      * @param proxy The proxy to use
-     * @return The client id from sound cloud
+     * @return The client id from sound cloud or <code>null</code> if one could not be found
      */
+    @Nullable
     public static String fetch(Proxy proxy) {
-        if (currentId == null) {
-            findIdFromSite(proxy);
-            return currentId;
+        String id = currentId;
+        if (id == null) {
+            try {
+                return findIdFromSite(proxy).join();
+            } catch (CompletionException | CancellationException e) {
+                return null;
+            }
         }
-        return currentId;
+        if (System.currentTimeMillis() - timestamp > REFRESH_AGE)
+            refresh(proxy);
+        return id;
     }
 }
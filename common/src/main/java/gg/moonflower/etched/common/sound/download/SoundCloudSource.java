@@ -1,14 +1,20 @@
 package gg.moonflower.etched.common.sound.download;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
 import gg.moonflower.etched.api.record.TrackData;
 import gg.moonflower.etched.api.sound.download.SoundDownloadSource;
 import gg.moonflower.etched.api.util.DownloadProgressListener;
+import gg.moonflower.etched.api.util.EtchedHttpClient;
 import gg.moonflower.etched.api.util.M3uParser;
 import gg.moonflower.etched.api.util.ProgressTrackingInputStream;
+import gg.moonflower.etched.api.util.RetryPolicy;
+import gg.moonflower.etched.api.util.UrlNormalizer;
 import gg.moonflower.etched.core.Etched;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.TextColor;
@@ -16,6 +22,9 @@ import net.minecraft.network.chat.TextComponent;
 import net.minecraft.network.chat.TranslatableComponent;
 import net.minecraft.server.packs.resources.ResourceManager;
 import net.minecraft.util.GsonHelper;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
@@ -26,6 +35,10 @@ import java.io.InputStreamReader;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ocelot
@@ -33,43 +46,69 @@ import java.util.*;
 public class SoundCloudSource implements SoundDownloadSource {
 
     static final Logger LOGGER = LogManager.getLogger();
+    // SoundCloud rate limits clients that make too many requests at once
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy("SoundCloud", 4);
+    // Playlists include the full user and media objects of every track, so only the fields that are actually used are read
+    private static final JsonFieldFilter RESOLVE_FILTER = JsonFieldFilter.create()
+            .field("kind", "streamable", "is_album", "title", "artwork_url")
+            .object("user", user -> user.field("username"))
+            .object("media", media -> media.object("transcodings", transcoding -> transcoding.field("url").object("format", format -> format.field("protocol"))))
+            .object("tracks", track -> track.field("permalink_url", "title").object("user", user -> user.field("username")));
     private static final Component BRAND = new TranslatableComponent("sound_source." + Etched.MOD_ID + ".sound_cloud").withStyle(style -> style.withColor(TextColor.fromRgb(0xFF5500)));
 
-    private final Map<String, Boolean> validCache = new WeakHashMap<>();
+    // The resolved document only points at the track and its transcodings. The signed stream URLs are requested from the transcodings each time, so it can be kept between sessions
+    private final ResolveCache resolveCache = new ResolveCache(10, TimeUnit.MINUTES, 64, true);
 
-    private static URL appendUri(String uri, String appendQuery) throws Exception {
+    private static URI appendUri(String uri, String appendQuery) throws Exception {
         URI oldUri = new URI(uri);
-        return new URI(oldUri.getScheme(), oldUri.getAuthority(), oldUri.getPath(), oldUri.getQuery() == null ? appendQuery : oldUri.getQuery() + "&" + appendQuery, oldUri.getFragment()).toURL();
+        return new URI(oldUri.getScheme(), oldUri.getAuthority(), oldUri.getPath(), oldUri.getQuery() == null ? appendQuery : oldUri.getQuery() + "&" + appendQuery, oldUri.getFragment());
     }
 
-    private InputStream get(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, int attempt, boolean requiresId) throws IOException {
-        HttpURLConnection httpURLConnection;
+    private void startRequest(@Nullable DownloadProgressListener progressListener) {
         if (progressListener != null)
             progressListener.progressStartRequest(new TranslatableComponent("sound_source." + Etched.MOD_ID + ".requesting", this.getApiName()));
+    }
 
-        try {
-            URL uRL = requiresId ? appendUri(url, "client_id=" + SoundCloudIdTracker.fetch(proxy)) : new URL(url);
-            httpURLConnection = (HttpURLConnection) uRL.openConnection(proxy);
-            httpURLConnection.setInstanceFollowRedirects(true);
-            Map<String, String> map = SoundDownloadSource.getDownloadHeaders();
+    private <T> T read(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, boolean requiresId, ResponseReader<T> reader) throws IOException {
+        try (InputStream stream = this.open(url, progressListener, proxy, 0, requiresId)) {
+            return reader.read(stream);
+        }
+    }
+
+    private <T> T get(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, boolean requiresId, ResponseReader<T> reader) throws IOException {
+        this.startRequest(progressListener);
+        return RETRY_POLICY.execute(url, () -> this.read(url, progressListener, proxy, requiresId, reader));
+    }
 
-            for (Map.Entry<String, String> entry : map.entrySet())
-                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
+    private <T> CompletableFuture<T> getAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, boolean requiresId, ResponseReader<T> reader, Executor executor) {
+        this.startRequest(progressListener);
+        return RETRY_POLICY.executeAsync(url, () -> this.read(url, progressListener, proxy, requiresId, reader), executor);
+    }
 
-            int response = httpURLConnection.getResponseCode();
-            if (requiresId && attempt == 0 && (response == 401 || response == 403)) { // Authenticate if required and bad auth response
+    private InputStream open(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, int attempt, boolean requiresId) throws IOException {
+        try {
+            String clientId = requiresId ? SoundCloudIdTracker.fetch(proxy) : null;
+            HttpGet get = new HttpGet(requiresId ? appendUri(url, "client_id=" + clientId) : new URI(url));
+            SoundDownloadSource.getDownloadHeaders().forEach(get::addHeader);
+
+            CloseableHttpResponse response = EtchedHttpClient.execute(get, proxy);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (requiresId && attempt == 0 && (statusCode == 401 || statusCode == 403)) { // Authenticate if required and bad auth response
                 LOGGER.info("Attempting to authenticate");
-                SoundCloudIdTracker.invalidate();
-                return this.get(url, progressListener, proxy, 1, true);
+                response.close();
+                if (clientId != null)
+                    SoundCloudIdTracker.invalidate(clientId, proxy);
+                return this.open(url, progressListener, proxy, 1, true);
             }
 
-            long size = httpURLConnection.getContentLengthLong();
-            if (response != 200) {
-                System.out.println(httpURLConnection);
-                throw new IOException(response + " " + httpURLConnection.getResponseMessage());
+            if (statusCode != 200) {
+                response.close();
+                throw new RetryPolicy.StatusException(statusCode, response.getStatusLine().getReasonPhrase());
             }
 
-            return size != -1 && progressListener != null ? new ProgressTrackingInputStream(httpURLConnection.getInputStream(), size, progressListener) : httpURLConnection.getInputStream();
+            HttpEntity entity = response.getEntity();
+            long size = entity.getContentLength();
+            return size != -1 && progressListener != null ? new ProgressTrackingInputStream(entity.getContent(), size, progressListener) : entity.getContent();
         } catch (IOException e) {
             throw e;
         } catch (Throwable e) {
@@ -77,20 +116,84 @@ public class SoundCloudSource implements SoundDownloadSource {
         }
     }
 
+    private static String getResolveUrl(String url) throws IOException {
+        return "https://api-v2.soundcloud.com/resolve?url=" + URLEncoder.encode(url, StandardCharsets.UTF_8.toString());
+    }
+
+    private static JsonObject readResolved(InputStream stream) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        JsonElement resolved = RESOLVE_FILTER.read(reader);
+        if (!resolved.isJsonObject())
+            throw new JsonSyntaxException("Expected resolved data to be an object");
+        return resolved.getAsJsonObject();
+    }
+
+    private static String readStreamUrl(InputStream stream) {
+        return GsonHelper.getAsString(new JsonParser().parse(new InputStreamReader(stream, StandardCharsets.UTF_8)).getAsJsonObject(), "url");
+    }
+
+    private static List<URL> readPlaylist(InputStream stream) throws IOException {
+        return M3uParser.parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject validate(JsonObject json) throws IOException {
+        String kind = GsonHelper.getAsString(json, "kind");
+        if (!"track".equals(kind) && !"playlist".equals(kind))
+            throw new IOException("URL is not a track or album");
+        if ("track".equals(kind) && !GsonHelper.getAsBoolean(json, "streamable"))
+            throw new IOException("URL is not streamable");
+        if ("playlist".equals(kind) && !GsonHelper.getAsBoolean(json, "is_album"))
+            throw new IOException("URL is not a track or album");
+        return json;
+    }
+
     private <T> T resolve(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, SourceRequest<T> function) throws IOException, JsonParseException {
-        try (InputStreamReader reader = new InputStreamReader(this.get("https://api-v2.soundcloud.com/resolve?url=" + URLEncoder.encode(url, StandardCharsets.UTF_8.toString()), progressListener, proxy, 0, true))) {
-            JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
-
-            String kind = GsonHelper.getAsString(json, "kind");
-            if (!"track".equals(kind) && !"playlist".equals(kind))
-                throw new IOException("URL is not a track or album");
-            if ("track".equals(kind) && !GsonHelper.getAsBoolean(json, "streamable"))
-                throw new IOException("URL is not streamable");
-            if ("playlist".equals(kind) && !GsonHelper.getAsBoolean(json, "is_album"))
-                throw new IOException("URL is not a track or album");
-
-            return function.process(json);
+        JsonObject json = this.resolveCache.get(url, () -> this.get(getResolveUrl(url), progressListener, proxy, true, SoundCloudSource::readResolved));
+        return function.process(validate(json));
+    }
+
+    private <T> CompletableFuture<T> resolveAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor, SourceRequest<T> function) {
+        return this.resolveCache.getAsync(url, () -> {
+            try {
+                return this.getAsync(getResolveUrl(url), progressListener, proxy, true, SoundCloudSource::readResolved, executor);
+            } catch (IOException e) {
+                CompletableFuture<JsonObject> future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+                return future;
+            }
+        }).thenApply(json -> {
+            try {
+                return function.process(validate(json));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Picks the first HLS transcoding, falling back to a progressive download if there is none.
+     */
+    private static JsonObject getTranscoding(JsonObject json) throws IOException {
+        JsonArray media = GsonHelper.getAsJsonArray(GsonHelper.getAsJsonObject(json, "media"), "transcodings");
+
+        JsonObject progressive = null;
+        for (int i = 0; i < media.size(); i++) {
+            JsonObject transcodingJson = GsonHelper.convertToJsonObject(media.get(i), "transcodings[" + i + "]");
+
+            JsonObject format = transcodingJson.getAsJsonObject("format");
+            String protocol = format.get("protocol").getAsString();
+            if ("progressive".equals(protocol))
+                progressive = transcodingJson;
+            if ("hls".equals(protocol))
+                return transcodingJson;
         }
+        if (progressive == null)
+            throw new IOException("Could not find an audio source");
+        return progressive;
+    }
+
+    private static boolean isHls(JsonObject transcoding) {
+        return "hls".equals(transcoding.getAsJsonObject("format").get("protocol").getAsString());
     }
 
     @Override
@@ -98,85 +201,127 @@ public class SoundCloudSource implements SoundDownloadSource {
         return this.resolve(url, progressListener, proxy, json -> {
             if (progressListener != null)
                 progressListener.progressStartRequest(RESOLVING_TRACKS);
-            JsonArray media = GsonHelper.getAsJsonArray(GsonHelper.getAsJsonObject(json, "media"), "transcodings");
-
-            int progressiveIndex = -1;
-            for (int i = 0; i < media.size(); i++) {
-                JsonObject transcodingJson = GsonHelper.convertToJsonObject(media.get(i), "transcodings[" + i + "]");
-
-                JsonObject format = transcodingJson.getAsJsonObject("format");
-                String protocol = format.get("protocol").getAsString();
-                if ("progressive".equals(protocol))
-                    progressiveIndex = i;
-                if ("hls".equals(protocol)) {
-                    try (InputStreamReader r = new InputStreamReader(this.get(GsonHelper.getAsString(transcodingJson, "url"), null, proxy, 0, true))) {
-                        try (InputStreamReader reader = new InputStreamReader(this.get(GsonHelper.getAsString(new JsonParser().parse(r).getAsJsonObject(), "url"), null, proxy, 0, false))) {
-                            return M3uParser.parse(reader);
-                        }
-                    }
-                }
-            }
-            if (progressiveIndex == -1)
-                throw new IOException("Could not find an audio source");
-            try (InputStreamReader reader = new InputStreamReader(this.get(GsonHelper.getAsString(GsonHelper.convertToJsonObject(media.get(progressiveIndex), "transcodings[" + progressiveIndex + "]"), "url"), null, proxy, 0, true))) {
-                return Collections.singletonList(new URL(GsonHelper.getAsString(new JsonParser().parse(reader).getAsJsonObject(), "url")));
+            JsonObject transcoding = getTranscoding(json);
+            try {
+                String streamUrl = this.get(GsonHelper.getAsString(transcoding, "url"), null, proxy, true, SoundCloudSource::readStreamUrl);
+                return isHls(transcoding) ? this.get(streamUrl, null, proxy, false, SoundCloudSource::readPlaylist) : Collections.singletonList(new URL(streamUrl));
+            } catch (IOException e) {
+                // The transcodings may have been revoked along with the client id, so the track is resolved again next time
+                this.invalidate(url);
+                throw e;
             }
         });
     }
 
     @Override
-    public TrackData[] resolveTracks(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException, JsonParseException {
-        return this.resolve(url, progressListener, proxy, json -> {
-            JsonObject user = GsonHelper.getAsJsonObject(json, "user");
-            String artist = GsonHelper.getAsString(user, "username");
-            String title = GsonHelper.getAsString(json, "title");
-            String kind = GsonHelper.getAsString(json, "kind");
-            if ("playlist".equals(kind)) {
-                JsonArray tracksJson = GsonHelper.getAsJsonArray(json, "tracks");
-                List<TrackData> tracks = new ArrayList<>();
-                tracks.add(new TrackData(url, artist, new TextComponent(title)));
-
-                for (int i = 0; i < tracksJson.size(); i++) {
-                    try {
-                        JsonObject trackJson = GsonHelper.convertToJsonObject(tracksJson.get(i), "tracks[" + i + "]");
-                        if (!trackJson.has("permalink_url")) // Paid song
-                            continue;
-                        JsonObject trackUser = GsonHelper.getAsJsonObject(trackJson, "user", user);
-                        String trackUrl = GsonHelper.getAsString(trackJson, "permalink_url");
-                        String trackArtist = GsonHelper.getAsString(trackUser, "username");
-                        String trackTitle = GsonHelper.getAsString(trackJson, "title");
-                        tracks.add(new TrackData(trackUrl, trackArtist, new TextComponent(trackTitle)));
-                    } catch (JsonParseException e) {
-                        LOGGER.error("Failed to parse track: " + url + "[" + i + "]", e);
-                    }
+    public CompletableFuture<List<URL>> resolveUrlAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        // Each request is its own task, so the thread is free for other work between the resolve, transcoding and playlist requests and while waiting to retry them
+        return this.resolveAsync(url, progressListener, proxy, executor, SoundCloudSource::getTranscoding).thenCompose(transcoding -> {
+            if (progressListener != null)
+                progressListener.progressStartRequest(RESOLVING_TRACKS);
+            CompletableFuture<String> streamUrl = this.getAsync(GsonHelper.getAsString(transcoding, "url"), null, proxy, true, SoundCloudSource::readStreamUrl, executor);
+            if (isHls(transcoding))
+                return streamUrl.thenCompose(playlistUrl -> this.getAsync(playlistUrl, null, proxy, false, SoundCloudSource::readPlaylist, executor));
+            return streamUrl.thenApply(audioUrl -> {
+                try {
+                    return Collections.<URL>singletonList(new URL(audioUrl));
+                } catch (MalformedURLException e) {
+                    throw new CompletionException(e);
                 }
+            });
+        }).whenComplete((urls, e) -> {
+            // The transcodings may have been revoked along with the client id, so the track is resolved again next time
+            if (e != null)
+                this.invalidate(url);
+        });
+    }
+
+    @Override
+    public void invalidate(String url) {
+        this.resolveCache.invalidate(url);
+    }
 
-                return tracks.toArray(new TrackData[0]);
+    private static TrackData[] readTracks(String url, JsonObject json) {
+        JsonObject user = GsonHelper.getAsJsonObject(json, "user");
+        String artist = GsonHelper.getAsString(user, "username");
+        String title = GsonHelper.getAsString(json, "title");
+        String kind = GsonHelper.getAsString(json, "kind");
+        if ("playlist".equals(kind)) {
+            JsonArray tracksJson = GsonHelper.getAsJsonArray(json, "tracks");
+            List<TrackData> tracks = new ArrayList<>();
+            tracks.add(new TrackData(url, artist, new TextComponent(title)));
+
+            for (int i = 0; i < tracksJson.size(); i++) {
+                try {
+                    JsonObject trackJson = GsonHelper.convertToJsonObject(tracksJson.get(i), "tracks[" + i + "]");
+                    if (!trackJson.has("permalink_url")) // Paid song
+                        continue;
+                    JsonObject trackUser = GsonHelper.getAsJsonObject(trackJson, "user", user);
+                    String trackUrl = GsonHelper.getAsString(trackJson, "permalink_url");
+                    String trackArtist = GsonHelper.getAsString(trackUser, "username");
+                    String trackTitle = GsonHelper.getAsString(trackJson, "title");
+                    tracks.add(new TrackData(trackUrl, trackArtist, new TextComponent(trackTitle)));
+                } catch (JsonParseException e) {
+                    LOGGER.error("Failed to parse track: " + url + "[" + i + "]", e);
+                }
             }
 
-            return new TrackData[]{new TrackData(url, artist, new TextComponent(title))};
-        });
+            return tracks.toArray(new TrackData[0]);
+        }
+
+        return new TrackData[]{new TrackData(url, artist, new TextComponent(title))};
+    }
+
+    private static Optional<String> readAlbumCover(JsonObject json) {
+        if (!json.has("artwork_url") || json.get("artwork_url").isJsonNull())
+            return Optional.empty();
+        return Optional.of(GsonHelper.getAsString(json, "artwork_url"));
+    }
+
+    @Override
+    public TrackData[] resolveTracks(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy) throws IOException, JsonParseException {
+        return this.resolve(url, progressListener, proxy, json -> readTracks(url, json));
+    }
+
+    @Override
+    public CompletableFuture<TrackData[]> resolveTracksAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, Executor executor) {
+        return this.resolveAsync(url, progressListener, proxy, executor, json -> readTracks(url, json));
     }
 
     @Override
     public Optional<String> resolveAlbumCover(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager) throws IOException {
-        return resolve(url, progressListener, proxy, json -> {
-            if (!json.has("artwork_url") || json.get("artwork_url").isJsonNull())
-                return Optional.empty();
-            return Optional.of(GsonHelper.getAsString(json, "artwork_url"));
-        });
+        return this.resolve(url, progressListener, proxy, SoundCloudSource::readAlbumCover);
+    }
+
+    @Override
+    public CompletableFuture<Optional<String>> resolveAlbumCoverAsync(String url, @Nullable DownloadProgressListener progressListener, Proxy proxy, ResourceManager resourceManager, Executor executor) {
+        return this.resolveAsync(url, progressListener, proxy, executor, SoundCloudSource::readAlbumCover);
     }
 
     @Override
     public boolean isValidUrl(String url) {
-        return this.validCache.computeIfAbsent(url, key -> {
-            try {
-                String host = new URI(key).getHost();
-                return "soundcloud.com".equals(host);
-            } catch (URISyntaxException e) {
-                return false;
-            }
-        });
+        try {
+            String host = new URI(url).getHost();
+            return "soundcloud.com".equals(host) || "m.soundcloud.com".equals(host) || "www.soundcloud.com".equals(host);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Collection<String> getHosts() {
+        return Collections.singleton("soundcloud.com");
+    }
+
+    @Override
+    public String canonicalize(String url) {
+        try {
+            // Mobile and www links point to the same tracks. The query only holds sharing information, except for the token of private links
+            URI permalink = new URI(UrlNormalizer.toPermalink(url, "secret_token"));
+            return "https://soundcloud.com" + permalink.getRawPath() + (permalink.getRawQuery() != null ? "?" + permalink.getRawQuery() : "");
+        } catch (URISyntaxException e) {
+            return UrlNormalizer.normalize(url);
+        }
     }
 
     @Override
@@ -193,4 +338,10 @@ public class SoundCloudSource implements SoundDownloadSource {
     public Optional<Component> getBrandText(String url) {
         return Optional.of(BRAND);
     }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+
+        T read(InputStream stream) throws IOException;
+    }
 }
@@ -1,20 +1,26 @@
 package gg.moonflower.etched.core;
 
 import gg.moonflower.etched.api.sound.download.SoundSourceManager;
+import gg.moonflower.etched.api.util.BandwidthLimiter;
 import gg.moonflower.etched.client.render.entity.JukeboxMinecartRenderer;
 import gg.moonflower.etched.client.render.item.AlbumCoverItemRenderer;
 import gg.moonflower.etched.client.screen.*;
+import gg.moonflower.etched.client.sound.SoundMetadataCache;
 import gg.moonflower.etched.common.item.*;
 import gg.moonflower.etched.common.network.EtchedMessages;
 import gg.moonflower.etched.common.sound.download.BandcampSource;
+import gg.moonflower.etched.common.sound.download.ResolveCache;
+import gg.moonflower.etched.common.sound.download.SoundCloudIdTracker;
 import gg.moonflower.etched.common.sound.download.SoundCloudSource;
 import gg.moonflower.etched.core.registry.*;
 import gg.moonflower.pollen.api.config.ConfigManager;
 import gg.moonflower.pollen.api.config.PollinatedConfigType;
 import gg.moonflower.pollen.api.event.events.entity.ModifyTradesEvents;
+import gg.moonflower.pollen.api.event.events.lifecycle.TickEvents;
 import gg.moonflower.pollen.api.event.events.registry.client.RegisterAtlasSpriteEvent;
 import gg.moonflower.pollen.api.platform.Platform;
 import gg.moonflower.pollen.api.registry.client.*;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.RenderType;
 import net.minecraft.client.resources.model.ModelResourceLocation;
 import net.minecraft.resources.ResourceLocation;
@@ -110,6 +116,14 @@ public class Etched {
         ColorRegistry.register((stack, index) -> index == 0 ? EtchedMusicDiscItem.getDiscColor(stack) : EtchedMusicDiscItem.getPattern(stack).isColorable() ? index == 1 ? EtchedMusicDiscItem.getLabelPrimaryColor(stack) : index == 2 ? EtchedMusicDiscItem.getLabelSecondaryColor(stack) : -1 : -1, EtchedItems.ETCHED_MUSIC_DISC);
 
         AlbumCoverItemRenderer.init();
+
+        // Stored next to the sound and metadata caches in the game directory
+        SoundCloudIdTracker.load(Minecraft.getInstance().gameDirectory.toPath().resolve(Etched.MOD_ID + "-soundcloud.json"), Minecraft.getInstance().getProxy());
+        // Only the client keeps resolved documents between sessions, the metadata cache cannot be loaded on a dedicated server
+        ResolveCache.setStore(SoundMetadataCache.resolveStore());
+
+        // Config edits apply to downloads that are already running, not just the next one to start. Unchanged values are ignored by the limiter
+        TickEvents.CLIENT_POST.register(() -> BandwidthLimiter.setRate(CLIENT_CONFIG.maxDownloadSpeed.get() * 1024L));
     }
 
     public static void commonPostInit(Platform.ModSetupContext ctx) {
@@ -7,11 +7,25 @@ public class EtchedConfig {
     public static class Client {
 
         public final PollinatedConfigBuilder.ConfigValue<Boolean> showNotes;
+        public final PollinatedConfigBuilder.ConfigValue<Integer> minStreamPrefetch;
+        public final PollinatedConfigBuilder.ConfigValue<Integer> maxStreamPrefetch;
+        public final PollinatedConfigBuilder.ConfigValue<Double> finishDownloadThreshold;
+        public final PollinatedConfigBuilder.ConfigValue<Integer> maxDownloadSpeed;
 
         public Client(PollinatedConfigBuilder builder) {
             builder.push("Game Feel");
             this.showNotes = builder.comment("Displays note particles appear above jukeboxes while a record is playing.").define("Display Note Particles", true);
             builder.pop();
+
+            builder.push("Streaming");
+            this.minStreamPrefetch = builder.comment("The minimum number of segments to download ahead of playback for streamed tracks.").defineInRange("Minimum Prefetch Segments", 2, 1, 32);
+            this.maxStreamPrefetch = builder.comment("The maximum number of segments to download ahead of playback for streamed tracks. More segments are fetched ahead when downloads are slower than playback.").defineInRange("Maximum Prefetch Segments", 8, 1, 32);
+            builder.pop();
+
+            builder.push("Downloads");
+            this.finishDownloadThreshold = builder.comment("How much of a download must be complete for it to keep going after its sound stops, so it can be cached. 0 always finishes downloads, 1 always aborts them.").defineInRange("Finish Download Threshold", 0.75, 0.0, 1.0);
+            this.maxDownloadSpeed = builder.comment("The maximum combined speed of all Etched downloads in KiB per second. Audible tracks get the largest share when the limit is reached. Limits below 16 are raised to 16. 0 disables the limit.").defineInRange("Download Speed Limit", 0, 0, 1048576);
+            builder.pop();
         }
     }
 }
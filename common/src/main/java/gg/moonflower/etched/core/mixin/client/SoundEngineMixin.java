@@ -14,6 +14,7 @@ import gg.moonflower.etched.api.util.SeekingStream;
 import gg.moonflower.etched.api.util.WaveDataReader;
 import gg.moonflower.etched.client.sound.EmptyAudioStream;
 import gg.moonflower.etched.client.sound.SoundCache;
+import gg.moonflower.etched.client.sound.SoundDownloadTracker;
 import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.resources.sounds.Sound;
@@ -50,16 +51,25 @@ public abstract class SoundEngineMixin {
     private static Logger LOGGER;
     @Unique
     private Sound sound;
+    @Unique
+    private SoundInstance soundInstance;
 
     @Inject(method = "tickNonPaused", at = @At(value = "INVOKE", target = "Ljava/util/Map;remove(Ljava/lang/Object;)Ljava/lang/Object;", shift = At.Shift.AFTER), locals = LocalCapture.CAPTURE_FAILHARD)
     public void onSoundRemoved(CallbackInfo ci, Iterator<?> iterator, Map.Entry<?, ?> entry, ChannelAccess.ChannelHandle channelHandle2, SoundInstance soundInstance) {
         if (soundInstance instanceof SoundStopListener)
             ((SoundStopListener) soundInstance).onStop();
+        SoundDownloadTracker.stop(soundInstance);
+    }
+
+    @Inject(method = {"stopAll", "destroy"}, at = @At("HEAD"))
+    public void onStopAll(CallbackInfo ci) {
+        SoundDownloadTracker.stopAll();
     }
 
     @Inject(method = "play", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/sounds/SoundBufferLibrary;getStream(Lnet/minecraft/resources/ResourceLocation;Z)Ljava/util/concurrent/CompletableFuture;", shift = At.Shift.BEFORE), locals = LocalCapture.CAPTURE_FAILHARD)
     public void captureSound(SoundInstance soundInstance, CallbackInfo ci, WeighedSoundEvents weighedSoundEvents, ResourceLocation resourceLocation, Sound sound) {
         this.sound = sound;
+        this.soundInstance = soundInstance;
     }
 
     @Redirect(method = "play", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/sounds/SoundBufferLibrary;getStream(Lnet/minecraft/resources/ResourceLocation;Z)Ljava/util/concurrent/CompletableFuture;"))
@@ -87,7 +97,7 @@ public abstract class SoundEngineMixin {
             }, Util.backgroundExecutor());
         }
 
-        return SoundCache.getAudioStream(onlineSound.getURL(), onlineSound.getProgressListener(), onlineSound.getAudioFileType()).thenCompose(AudioSource::openStream).thenApplyAsync(stream -> {
+        return SoundCache.getAudioStream(onlineSound.getURL(), onlineSound.getProgressListener(), onlineSound.getAudioFileType(), this.soundInstance).thenCompose(AudioSource::openStream).thenApplyAsync(stream -> {
             onlineSound.getProgressListener().progressStartLoading();
             try {
                 byte[] readHeader = new byte[8192]; // 8KB starting buffer
@@ -137,6 +147,9 @@ public abstract class SoundEngineMixin {
             }
         }, Util.backgroundExecutor()).handleAsync((stream, e) -> {
             if (e != null) {
+                // The sound stopped before it finished downloading, so there is nothing to report
+                if (SoundCache.isCancellation(e))
+                    return EmptyAudioStream.INSTANCE;
                 e.printStackTrace();
                 onlineSound.getProgressListener().onFail();
                 return EmptyAudioStream.INSTANCE;